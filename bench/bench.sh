@@ -0,0 +1,7 @@
+# JMH benchmarks, run from the bench directory: ./bench.sh [JMH options], e.g. ./bench.sh Figures -p size=1000
+# The JMH jars (jmh-core, jmh-generator-annprocess, jopt-simple, commons-math3) must be in bench/lib.
+if javac -cp "lib/*" -processor org.openjdk.jmh.generators.BenchmarkProcessor -d class ../src/fr/ubs/scribble/*.java ../src/fr/ubs/scribble/shapes/*.java ../src/fr/ubs/scribbleOnline/*.java src/fr/ubs/scribble/bench/*.java; then
+    java -cp "class:lib/*" org.openjdk.jmh.Main "$@"
+else
+    echo "Compilation failed. Benchmarks not run."
+fi
@@ -0,0 +1,80 @@
+package fr.ubs.scribble.bench;
+
+import java.awt.Color;
+import java.util.Random;
+
+import fr.ubs.scribble.Figure;
+import fr.ubs.scribble.Figures;
+import fr.ubs.scribble.ShapeRegistry;
+
+/**
+ * The figures used by the benchmarks, always the same for a given size: figures of every
+ * registered shape, of 10 to 200 pixels, spread on a board of {@link #BOARD_SIZE} pixels.
+ */
+final class BenchFigures
+{
+    /**
+     * the width and height of the board
+     */
+    static final int BOARD_SIZE = 4000;
+
+    /**
+     * the seed of the figures and locations
+     */
+    static final long SEED = 42;
+
+    /**
+     * the number of shapes registered in {@link ShapeRegistry}
+     */
+    private static final int SHAPES = 4;
+
+    private BenchFigures()
+    {
+    }
+
+    /**
+     * Make a figure
+     *
+     * @param id     the figure id
+     * @param random the random generator of the figure shape, color, location and size
+     * @return a new figure
+     */
+    static Figure figure(int id, Random random)
+    {
+        return new Figure(id, ShapeRegistry.getShape(random.nextInt(SHAPES)), new Color(random.nextInt()),
+                random.nextInt(BOARD_SIZE - 200), random.nextInt(BOARD_SIZE - 200),
+                10 + random.nextInt(190), 10 + random.nextInt(190));
+    }
+
+    /**
+     * Make figures, with ids from 1
+     *
+     * @param size the number of figures
+     * @return the figures, in drawing order
+     */
+    static Figures figures(int size)
+    {
+        Random random = new Random(SEED);
+        Figures figures = new Figures();
+        for (int i = 1; i <= size; i++) {
+            figures.add(figure(i, random));
+        }
+        return figures;
+    }
+
+    /**
+     * Make locations on the board, as x, y pairs
+     *
+     * @param count the number of locations, a power of 2
+     * @return the x and y of each location
+     */
+    static double[] locations(int count)
+    {
+        Random random = new Random(SEED + 1);
+        double[] locations = new double[2 * count];
+        for (int i = 0; i < locations.length; i++) {
+            locations[i] = random.nextDouble() * BOARD_SIZE;
+        }
+        return locations;
+    }
+}
@@ -0,0 +1,108 @@
+package fr.ubs.scribble.bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import fr.ubs.scribble.Direction;
+import fr.ubs.scribble.Figure;
+
+/**
+ * Hit-testing and serialization of a single figure. The locations tested are around the figure,
+ * so that every branch of the hit tests is taken.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class FigureBenchmark
+{
+    private static final int LOCATIONS = 1024;
+
+    private Figure figure;
+    private double[] locations;
+    private int next;
+    private byte[] serialized;
+
+    @Setup
+    public void setup() throws IOException
+    {
+        figure = BenchFigures.figure(1, new Random(BenchFigures.SEED));
+        Random random = new Random(BenchFigures.SEED);
+        locations = new double[2 * LOCATIONS];
+        for (int i = 0; i < LOCATIONS; i++) {
+            locations[2 * i] = figure.getX() - 10 + random.nextDouble() * (figure.getWidth() + 20);
+            locations[2 * i + 1] = figure.getY() - 10 + random.nextDouble() * (figure.getHeight() + 20);
+        }
+        serialized = serialize(figure);
+    }
+
+    private int nextLocation()
+    {
+        int location = next;
+        next = (next + 2) & (2 * LOCATIONS - 1);
+        return location;
+    }
+
+    @Benchmark
+    public boolean isInside()
+    {
+        int i = nextLocation();
+        return figure.isInside(locations[i], locations[i + 1]);
+    }
+
+    @Benchmark
+    public Direction getBorderLocation()
+    {
+        int i = nextLocation();
+        return figure.getBorderLocation(locations[i], locations[i + 1]);
+    }
+
+    @Benchmark
+    public byte[] serialize() throws IOException
+    {
+        return serialize(figure);
+    }
+
+    @Benchmark
+    public Object deserialize() throws IOException, ClassNotFoundException
+    {
+        return deserialize(serialized);
+    }
+
+    /**
+     * Serialize an object as RMI does, with a new stream
+     */
+    static byte[] serialize(Object object) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(object);
+        }
+        return bytes.toByteArray();
+    }
+
+    static Object deserialize(byte[] bytes) throws IOException, ClassNotFoundException
+    {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+            return in.readObject();
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package fr.ubs.scribble.bench;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import fr.ubs.scribble.Figure;
+import fr.ubs.scribble.Figures;
+
+/**
+ * Hit-testing, drawing and serialization of a whole board. The board is drawn at scale 1 into an
+ * offscreen image the size of a screen, with the antialiasing of the canvas: only the figures in
+ * the top left corner of the board are visible.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class FiguresBenchmark
+{
+    private static final int LOCATIONS = 1024;
+
+    @Param({"100", "10000", "100000"})
+    public int size;
+
+    private Figures figures;
+    private double[] locations;
+    private int next;
+    private BufferedImage image;
+    private Graphics2D g2d;
+    private byte[] serialized;
+
+    @Setup
+    public void setup() throws IOException
+    {
+        figures = BenchFigures.figures(size);
+        figures.getFigureAt(0, 0); // builds the spatial index
+        locations = BenchFigures.locations(LOCATIONS);
+        image = new BufferedImage(1920, 1080, BufferedImage.TYPE_INT_ARGB);
+        g2d = image.createGraphics();
+        g2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        g2d.setClip(0, 0, image.getWidth(), image.getHeight());
+        serialized = FigureBenchmark.serialize(figures);
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        g2d.dispose();
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public Figure getFigureAt()
+    {
+        int i = next;
+        next = (next + 2) & (2 * LOCATIONS - 1);
+        return figures.getFigureAt(locations[i], locations[i + 1]);
+    }
+
+    @Benchmark
+    public BufferedImage draw()
+    {
+        figures.draw(g2d, 1, 0, 0);
+        return image;
+    }
+
+    @Benchmark
+    public byte[] serialize() throws IOException
+    {
+        return FigureBenchmark.serialize(figures);
+    }
+
+    @Benchmark
+    public Object deserialize() throws IOException, ClassNotFoundException
+    {
+        return FigureBenchmark.deserialize(serialized);
+    }
+}
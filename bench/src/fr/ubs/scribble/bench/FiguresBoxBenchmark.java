@@ -0,0 +1,94 @@
+package fr.ubs.scribble.bench;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import fr.ubs.scribble.Figure;
+import fr.ubs.scribble.Figures;
+import fr.ubs.scribbleOnline.FiguresBoxImpl;
+
+/**
+ * Additions and updates of a board kept in memory, with no client registered. The board is filled
+ * again before each iteration, and grows during the iteration when figures are added. The
+ * standard output, where the board logs the edits, is discarded while the board is used.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class FiguresBoxBenchmark
+{
+    @Param({"100", "10000", "100000"})
+    public int size;
+
+    private PrintStream out;
+    private ScheduledExecutorService flusher;
+    private FiguresBoxImpl box;
+    private Figure[] figures;
+    private Random random;
+    private int nextId;
+    private int next;
+
+    @Setup(Level.Iteration)
+    public void setup()
+    {
+        out = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        flusher = Executors.newSingleThreadScheduledExecutor();
+        box = new FiguresBoxImpl(flusher);
+        Figures board = BenchFigures.figures(size);
+        figures = board.toArray(new Figure[0]);
+        for (Figure figure : figures) {
+            box.addFigure(figure.copy());
+        }
+        random = new Random(BenchFigures.SEED);
+        nextId = size + 1;
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown()
+    {
+        box.close();
+        flusher.shutdownNow();
+        System.setOut(out);
+    }
+
+    @Benchmark
+    public boolean addFigure()
+    {
+        return box.addFigure(BenchFigures.figure(nextId++, random));
+    }
+
+    /**
+     * Update the figures in turn, each time with a newer version
+     */
+    @Benchmark
+    public boolean updateFigure() throws Exception
+    {
+        Figure figure = figures[next];
+        next = next + 1 == figures.length ? 0 : next + 1;
+        figure.setX(figure.getX() + 1);
+        figure.nextVersion(1);
+        return box.updateFigure(figure.copy());
+    }
+}
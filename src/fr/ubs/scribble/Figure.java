@@ -4,24 +4,36 @@ import fr.ubs.scribble.shapes.Shape;
 
 import java.awt.*;
 import java.awt.geom.Rectangle2D;
-import java.io.Serializable;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * A figure to be drawn. Composed of a shape, a color, a location and a size
+ * <p>
+ * Figures are sent in a compact form: the id, the code of the shape (see {@link ShapeRegistry}),
+ * the packed ARGB color and the bounding box. Only the shapes that have no code are sent as objects.
+ * The selected state is local and is not sent.
+ * <p>
+ * Each figure has a version, increased by every edit: a per-figure Lamport clock in the high 32
+ * bits, and the id of the writer in the low 32 bits. Two versions of a figure are thus always
+ * ordered the same way by every client and by the server, the last writer winning.
+ * <p>
+ * A figure only holds primitives besides its shape: the color is kept as a packed ARGB value and
+ * the bounding box as four doubles. The {@link Color} objects are flyweights shared by all the
+ * figures of the same color, see {@link #getColor(int)}.
  *
  * @author Pascale Launay
  */
-public class Figure implements Serializable
+public class Figure implements Externalizable
 {
-    /**
-     * the last unique id
-     */
-    private static int LAST_ID;
-
     /**
      * the shape of the figure
      */
-    private final Shape shape;
+    private Shape shape;
 
     /**
      * figure unique identifier
@@ -29,14 +41,24 @@ public class Figure implements Serializable
     private int id;
 
     /**
-     * the color of the figure
+     * the version of the figure: Lamport clock and writer id (0 for a figure never edited)
      */
-    private Color color;
+    private long version;
+
+    /**
+     * the colors of the figures, by ARGB value
+     */
+    private static final Map<Integer, Color> COLORS = new ConcurrentHashMap<>();
+
+    /**
+     * the ARGB color of the figure
+     */
+    private int color;
 
     /**
      * the figure bounding box
      */
-    private Rectangle2D rect;
+    private double x, y, width, height;
 
     /**
      * true if the figure is selected
@@ -46,17 +68,71 @@ public class Figure implements Serializable
     /**
      * Constructor
      *
+     * @param id    the figure unique id
      * @param shape the shape of the figure
      * @param color the color of the figure
      * @param x     the x location of the figure
      * @param y     the y location of the figure
      */
-    public Figure(Shape shape, Color color, double x, double y)
+    public Figure(int id, Shape shape, Color color, double x, double y)
     {
-        this.id = ++LAST_ID;
+        this(id, shape, color.getRGB(), x, y, 0, 0);
+    }
+
+    /**
+     * Constructor of a figure that already has an id, e.g. a figure restored from a file
+     *
+     * @param id     the figure unique id
+     * @param shape  the shape of the figure
+     * @param color  the color of the figure
+     * @param x      the x location of the figure
+     * @param y      the y location of the figure
+     * @param width  the width of the figure
+     * @param height the height of the figure
+     */
+    public Figure(int id, Shape shape, Color color, double x, double y, double width, double height)
+    {
+        this(id, shape, color.getRGB(), x, y, width, height);
+    }
+
+    /**
+     * Constructor of a figure that already has an id, e.g. a figure read from a table
+     *
+     * @param id     the figure unique id
+     * @param shape  the shape of the figure
+     * @param color  the ARGB color of the figure
+     * @param x      the x location of the figure
+     * @param y      the y location of the figure
+     * @param width  the width of the figure
+     * @param height the height of the figure
+     */
+    public Figure(int id, Shape shape, int color, double x, double y, double width, double height)
+    {
+        this.id = id;
         this.shape = shape;
         this.color = color;
-        this.rect = new Rectangle2D.Double(x, y, 0, 0);
+        this.x = x;
+        this.y = y;
+        this.width = width;
+        this.height = height;
+    }
+
+    /**
+     * Give the shared color object of an ARGB value
+     *
+     * @param argb the ARGB value
+     * @return the color, the same object for every call with this value
+     */
+    public static Color getColor(int argb)
+    {
+        return COLORS.computeIfAbsent(argb, value -> new Color(value, true));
+    }
+
+    /**
+     * Constructor used to read a figure from a stream
+     */
+    public Figure()
+    {
     }
 
     /**
@@ -69,6 +145,31 @@ public class Figure implements Serializable
         return id;
     }
 
+    /**
+     * Give the figure version, see {@link #nextVersion(int)}
+     *
+     * @return the figure version
+     */
+    public long getVersion()
+    {
+        return version;
+    }
+
+    public void setVersion(long version)
+    {
+        this.version = version;
+    }
+
+    /**
+     * Give the figure a version following its current one, before it is sent as edited
+     *
+     * @param writer the id of the client that edits the figure
+     */
+    public void nextVersion(int writer)
+    {
+        this.version = ((this.version >>> 32) + 1) << 32 | (writer & 0xffffffffL);
+    }
+
     /**
      * true if the figure has a null width or height
      *
@@ -76,7 +177,7 @@ public class Figure implements Serializable
      */
     public boolean isEmpty()
     {
-        return rect.getWidth() == 0 || rect.getHeight() == 0;
+        return this.width == 0 || this.height == 0;
     }
 
     /**
@@ -88,8 +189,8 @@ public class Figure implements Serializable
      */
     public boolean isInside(double x, double y)
     {
-        return x >= rect.getX() - 2 && x <= rect.getX() + rect.getWidth() + 2 &&
-                y >= rect.getY() - 2 && y <= rect.getY() + rect.getHeight() + 2;
+        return x >= this.x - 2 && x <= this.x + this.width + 2 &&
+                y >= this.y - 2 && y <= this.y + this.height + 2;
     }
 
     /**
@@ -100,14 +201,14 @@ public class Figure implements Serializable
      */
     public Direction getBorderLocation(double x, double y)
     {
-        double centerX = rect.getX() + rect.getWidth() / 2;
-        double centerY = rect.getY() + rect.getHeight() / 2;
-        boolean west = x <= rect.getX() + 4;
-        boolean east = x >= rect.getX() + rect.getWidth() - 4;
+        double centerX = this.x + this.width / 2;
+        double centerY = this.y + this.height / 2;
+        boolean west = x <= this.x + 4;
+        boolean east = x >= this.x + this.width - 4;
         boolean middle = x >= centerX - 4 && x <= centerX + 4;
-        if (y <= rect.getY() + 4) { // north
+        if (y <= this.y + 4) { // north
             return west ? Direction.NORTH_WEST : east ? Direction.NORTH_EAST : middle ? Direction.NORTH : null;
-        } else if (y >= rect.getY() + rect.getHeight() - 4) { // south
+        } else if (y >= this.y + this.height - 4) { // south
             return west ? Direction.SOUTH_WEST : east ? Direction.SOUTH_EAST : middle ? Direction.SOUTH : null;
         } else if (y >= centerY - 4 && y <= centerY + 4) { // middle
             return west ? Direction.WEST : east ? Direction.EAST : null;
@@ -142,7 +243,7 @@ public class Figure implements Serializable
      */
     public double getX()
     {
-        return rect.getX();
+        return this.x;
     }
 
     /**
@@ -152,7 +253,7 @@ public class Figure implements Serializable
      */
     public double getY()
     {
-        return rect.getY();
+        return this.y;
     }
 
     /**
@@ -162,7 +263,7 @@ public class Figure implements Serializable
      */
     public double getWidth()
     {
-        return rect.getWidth();
+        return this.width;
     }
 
     /**
@@ -172,7 +273,7 @@ public class Figure implements Serializable
      */
     public double getHeight()
     {
-        return rect.getHeight();
+        return this.height;
     }
 
     /**
@@ -181,6 +282,16 @@ public class Figure implements Serializable
      * @return the color of the figure
      */
     public Color getColor()
+    {
+        return getColor(color);
+    }
+
+    /**
+     * Give the color of the figure as a packed value
+     *
+     * @return the ARGB color of the figure
+     */
+    public int getRGB()
     {
         return color;
     }
@@ -192,7 +303,9 @@ public class Figure implements Serializable
      */
     public void setX(double x)
     {
-        this.shape.setX(this.rect, x);
+        Rectangle2D rect = getRect();
+        this.shape.setX(rect, x);
+        setRect(rect);
     }
 
     /**
@@ -202,7 +315,36 @@ public class Figure implements Serializable
      */
     public void setY(double y)
     {
-        this.shape.setY(this.rect, y);
+        Rectangle2D rect = getRect();
+        this.shape.setY(rect, y);
+        setRect(rect);
+    }
+
+    /**
+     * Copy the version, color, location and size of another state of this figure
+     *
+     * @param figure the other state of the figure
+     */
+    public void set(Figure figure)
+    {
+        this.version = figure.version;
+        this.color = figure.color;
+        this.x = figure.x;
+        this.y = figure.y;
+        this.width = figure.width;
+        this.height = figure.height;
+    }
+
+    /**
+     * Give a copy of the current state of this figure, e.g. to be sent while the figure is still edited
+     *
+     * @return a new figure with the same id
+     */
+    public Figure copy()
+    {
+        Figure copy = new Figure(id, shape, color, x, y, width, height);
+        copy.version = version;
+        return copy;
     }
 
     /**
@@ -212,7 +354,7 @@ public class Figure implements Serializable
      */
     public void setColor(Color color)
     {
-        this.color = color;
+        this.color = color.getRGB();
     }
     
     /**
@@ -222,7 +364,9 @@ public class Figure implements Serializable
      */
     public void setWidth(double width)
     {
-        this.shape.setWidth(this.rect, width);
+        Rectangle2D rect = getRect();
+        this.shape.setWidth(rect, width);
+        setRect(rect);
     }
 
 
@@ -233,7 +377,45 @@ public class Figure implements Serializable
      */
     public void setHeight(double height)
     {
-        this.shape.setHeight(this.rect, height);
+        Rectangle2D rect = getRect();
+        this.shape.setHeight(rect, height);
+        setRect(rect);
+    }
+
+    /**
+     * Give the area covered by the figure when it is drawn, including the selection marks
+     *
+     * @param scale the scale to apply to draw figures
+     * @param tx    the x translation to apply to draw figures
+     * @param ty    the y translation to apply to draw figures
+     * @return the area covered by the figure
+     */
+    public Rectangle2D getDrawBounds(double scale, double tx, double ty)
+    {
+        double margin = 2 * scale + 5;
+        double x = Math.min(this.x, this.x + this.width) * scale + tx - margin;
+        double y = Math.min(this.y, this.y + this.height) * scale + ty - margin;
+        return new Rectangle2D.Double(x, y, Math.abs(this.width) * scale + 2 * margin,
+                Math.abs(this.height) * scale + 2 * margin);
+    }
+
+    /**
+     * Check whether the figure, when it is drawn, intersects the given area
+     *
+     * @param clip  the area, in the graphics context coordinates
+     * @param scale the scale to apply to draw figures
+     * @param tx    the x translation to apply to draw figures
+     * @param ty    the y translation to apply to draw figures
+     * @return true if some part of the figure or of its selection marks is in the area
+     */
+    public boolean isVisible(Rectangle clip, double scale, double tx, double ty)
+    {
+        double margin = 2 * scale + 5;
+        double x0 = Math.min(this.x, this.x + this.width) * scale + tx - margin;
+        double y0 = Math.min(this.y, this.y + this.height) * scale + ty - margin;
+        double x1 = x0 + Math.abs(this.width) * scale + 2 * margin;
+        double y1 = y0 + Math.abs(this.height) * scale + 2 * margin;
+        return x1 >= clip.x && x0 <= clip.x + clip.width && y1 >= clip.y && y0 <= clip.y + clip.height;
     }
 
     /**
@@ -246,8 +428,8 @@ public class Figure implements Serializable
      */
     public void draw(Graphics2D g2d, double scale, double tx, double ty)
     {
-        g2d.setColor(color);
-        shape.draw(g2d, makeRectangle(rect.getX() * scale + tx, rect.getY() * scale + ty, rect.getWidth() * scale, rect.getHeight() * scale));
+        g2d.setColor(getColor(color));
+        shape.draw(g2d, makeRectangle(this.x * scale + tx, this.y * scale + ty, this.width * scale, this.height * scale));
         if (selected) {
             drawSelection(g2d, scale, tx, ty);
         }
@@ -272,11 +454,13 @@ public class Figure implements Serializable
      */
     public void update()
     {
-        if (rect.getWidth() < 0) {
-            rect.setRect(rect.getX()+rect.getWidth(), rect.getY(), -rect.getWidth(), rect.getHeight());
+        if (this.width < 0) {
+            this.x += this.width;
+            this.width = -this.width;
         }
-        if (rect.getHeight() < 0) {
-            rect.setRect(rect.getX(), rect.getY()+rect.getHeight(), rect.getWidth(), -rect.getHeight());
+        if (this.height < 0) {
+            this.y += this.height;
+            this.height = -this.height;
         }
     }
 
@@ -292,8 +476,8 @@ public class Figure implements Serializable
     {
         g2d.setColor(new Color(0, 0, 0x8b));
         g2d.setStroke(new BasicStroke(.5f));
-        double x0 = rect.getX() - 2, x1 = (x0 + rect.getWidth() / 2) * scale + tx, x2 = (x0 + rect.getWidth()) * scale + tx;
-        double y0 = rect.getY() - 2, y1 = (y0 + rect.getHeight() / 2) * scale + ty, y2 = (y0 + rect.getHeight()) * scale + ty;
+        double x0 = this.x - 2, x1 = (x0 + this.width / 2) * scale + tx, x2 = (x0 + this.width) * scale + tx;
+        double y0 = this.y - 2, y1 = (y0 + this.height / 2) * scale + ty, y2 = (y0 + this.height) * scale + ty;
         x0 = x0 * scale + tx;
         y0 = y0 * scale + ty;
         double[][] points = {{x0, y0}, {x0, y1}, {x0, y2}, {x1, y0}, {x1, y2}, {x2, y0}, {x2, y1}, {x2, y2}};
@@ -303,20 +487,59 @@ public class Figure implements Serializable
     }
 
     @Override
-    public String toString()
+    public void writeExternal(ObjectOutput out) throws IOException
+    {
+        int code = ShapeRegistry.getCode(shape);
+        out.writeInt(id);
+        out.writeLong(version);
+        out.writeByte(code);
+        if (code == ShapeRegistry.UNKNOWN) {
+            out.writeObject(shape);
+        }
+        out.writeInt(color);
+        out.writeDouble(this.x);
+        out.writeDouble(this.y);
+        out.writeDouble(this.width);
+        out.writeDouble(this.height);
+    }
+
+    @Override
+    public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException
     {
-        return shape.getName() + " " + rect;
+        id = in.readInt();
+        version = in.readLong();
+        int code = in.readByte();
+        shape = code == ShapeRegistry.UNKNOWN ? (Shape) in.readObject() : ShapeRegistry.getShape(code);
+        color = in.readInt();
+        x = in.readDouble();
+        y = in.readDouble();
+        width = in.readDouble();
+        height = in.readDouble();
     }
 
-    public static int getLAST_ID() {
-        return LAST_ID;
+    @Override
+    public String toString()
+    {
+        return shape.getName() + " " + getRect();
     }
 
     public Shape getShape() {
         return shape;
     }
 
+    /**
+     * Give a copy of the figure bounding box: changing it does not change the figure
+     *
+     * @return a new rectangle
+     */
     public Rectangle2D getRect() {
-        return rect;
+        return new Rectangle2D.Double(x, y, width, height);
+    }
+
+    private void setRect(Rectangle2D rect) {
+        this.x = rect.getX();
+        this.y = rect.getY();
+        this.width = rect.getWidth();
+        this.height = rect.getHeight();
     }
 }
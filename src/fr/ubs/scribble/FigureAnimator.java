@@ -0,0 +1,131 @@
+package fr.ubs.scribble;
+
+import javax.swing.*;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Moves figures smoothly to the locations and sizes received while other users are dragging them.
+ * Each new target is reached by linear interpolation from the current state of the figure, over the
+ * expected time until the next target.
+ */
+public class FigureAnimator
+{
+    /**
+     * the time between two animation steps, in milliseconds
+     */
+    private static final int FRAME_MILLIS = 16;
+
+    /**
+     * the canvas where the figures are drawn
+     */
+    private final FiguresCanvas canvas;
+
+    /**
+     * the running animations, by figure
+     */
+    private final Map<Figure, Animation> animations = new IdentityHashMap<>();
+
+    /**
+     * the timer that runs the animation steps while some animations are running
+     */
+    private final Timer timer;
+
+    /**
+     * The move of a figure from a location and size to another
+     */
+    private static class Animation
+    {
+        double x0, y0, width0, height0;
+        double x1, y1, width1, height1;
+        long start;
+        long duration;
+    }
+
+    /**
+     * Constructor
+     *
+     * @param canvas the canvas where the figures are drawn
+     */
+    public FigureAnimator(FiguresCanvas canvas)
+    {
+        this.canvas = canvas;
+        this.timer = new Timer(FRAME_MILLIS, event -> step());
+    }
+
+    /**
+     * Start moving a figure to a new location and size. May be called from any thread.
+     *
+     * @param figure   the figure to be moved
+     * @param x        the target x location
+     * @param y        the target y location
+     * @param width    the target width
+     * @param height   the target height
+     * @param duration the time to reach the target, in milliseconds
+     */
+    public void animate(Figure figure, double x, double y, double width, double height, long duration)
+    {
+        if (!SwingUtilities.isEventDispatchThread()) {
+            SwingUtilities.invokeLater(() -> animate(figure, x, y, width, height, duration));
+            return;
+        }
+        Animation animation = new Animation();
+        animation.x0 = figure.getX();
+        animation.y0 = figure.getY();
+        animation.width0 = figure.getWidth();
+        animation.height0 = figure.getHeight();
+        animation.x1 = x;
+        animation.y1 = y;
+        animation.width1 = width;
+        animation.height1 = height;
+        animation.start = System.currentTimeMillis();
+        animation.duration = Math.max(duration, 1);
+        animations.put(figure, animation);
+        if (!timer.isRunning()) {
+            timer.start();
+        }
+    }
+
+    /**
+     * Stop moving a figure, e.g. when its final state has been received. May be called from any thread.
+     *
+     * @param figure the figure
+     */
+    public void stop(Figure figure)
+    {
+        if (!SwingUtilities.isEventDispatchThread()) {
+            SwingUtilities.invokeLater(() -> stop(figure));
+            return;
+        }
+        animations.remove(figure);
+    }
+
+    /**
+     * Move every animated figure one step closer to its target
+     */
+    private void step()
+    {
+        long now = System.currentTimeMillis();
+        Iterator<Map.Entry<Figure, Animation>> iterator = animations.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Figure, Animation> entry = iterator.next();
+            Figure figure = entry.getKey();
+            Animation animation = entry.getValue();
+            double t = Math.min(1, (now - animation.start) / (double) animation.duration);
+            canvas.repaintFigure(figure);
+            figure.setX(animation.x0 + (animation.x1 - animation.x0) * t);
+            figure.setY(animation.y0 + (animation.y1 - animation.y0) * t);
+            figure.setWidth(animation.width0 + (animation.width1 - animation.width0) * t);
+            figure.setHeight(animation.height0 + (animation.height1 - animation.height0) * t);
+            canvas.getFigures().reindex(figure);
+            canvas.repaintFigure(figure);
+            if (t >= 1) {
+                iterator.remove();
+            }
+        }
+        if (animations.isEmpty()) {
+            timer.stop();
+        }
+    }
+}
@@ -4,9 +4,23 @@ import fr.ubs.scribble.shapes.Shape;
 
 import java.awt.*;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntSupplier;
+import java.util.function.Predicate;
 
 /**
  * The figures to be drawn: a list of figures and a new figure currently drawing
+ * <p>
+ * The list order is the drawing order. A spatial index of the figures is built the first time a
+ * figure is looked for by location, and an index by id the first time a figure is looked for by
+ * id. Both are then kept up to date when figures are added or removed. Figures moved or resized
+ * in place must be reported with {@link #reindex(Figure)}.
+ * <p>
+ * The ids of the new figures are given by an id supplier, which must give ids that are unique
+ * among all the users of a board. By default, ids are only unique in this JVM.
  *
  * @author Pascale Launay
  */
@@ -15,27 +29,225 @@ public class Figures extends ArrayList<Figure>
     /**
      * the figure that is currently drawing (may be null)
      */
-    private Figure currentFigure;
+    private transient Figure currentFigure;
 
     /**
-     * Draw the figures using the given graphics context
+     * the spatial index of the figures (null until it is needed)
+     */
+    private transient FiguresGrid grid;
+
+    /**
+     * the figures by id (null until it is needed)
+     */
+    private transient Map<Integer, Figure> ids;
+
+    /**
+     * the last id given to a figure when no id supplier is set
+     */
+    private static final AtomicInteger LAST_ID = new AtomicInteger();
+
+    /**
+     * gives the ids of the new figures (null for the local ids)
+     */
+    private transient IntSupplier idSupplier;
+
+    /**
+     * Set the supplier of the ids of the new figures
+     *
+     * @param idSupplier the id supplier, null for ids only unique in this JVM
+     */
+    public void setIdSupplier(IntSupplier idSupplier)
+    {
+        this.idSupplier = idSupplier;
+    }
+
+    @Override
+    public boolean add(Figure figure)
+    {
+        super.add(figure);
+        if (grid != null) {
+            grid.add(figure);
+        }
+        if (ids != null) {
+            ids.put(figure.getId(), figure);
+        }
+        return true;
+    }
+
+    @Override
+    public void add(int index, Figure figure)
+    {
+        super.add(index, figure);
+        grid = null;
+        if (ids != null) {
+            ids.put(figure.getId(), figure);
+        }
+    }
+
+    @Override
+    public boolean addAll(Collection<? extends Figure> figures)
+    {
+        for (Figure figure : figures) {
+            add(figure);
+        }
+        return !figures.isEmpty();
+    }
+
+    @Override
+    public Figure set(int index, Figure figure)
+    {
+        Figure previous = super.set(index, figure);
+        grid = null;
+        ids = null;
+        return previous;
+    }
+
+    @Override
+    public boolean remove(Object figure)
+    {
+        boolean removed = super.remove(figure);
+        if (removed) {
+            unindex((Figure) figure);
+        }
+        return removed;
+    }
+
+    @Override
+    public Figure remove(int index)
+    {
+        Figure figure = super.remove(index);
+        unindex(figure);
+        return figure;
+    }
+
+    @Override
+    public boolean removeIf(Predicate<? super Figure> filter)
+    {
+        if (grid == null && ids == null) {
+            return super.removeIf(filter);
+        }
+        boolean removed = false;
+        for (int i = size() - 1; i >= 0; i--) {
+            if (filter.test(get(i))) {
+                remove(i);
+                removed = true;
+            }
+        }
+        return removed;
+    }
+
+    @Override
+    public void clear()
+    {
+        super.clear();
+        grid = null;
+        ids = null;
+    }
+
+    /**
+     * Remove a figure that has been removed from the list from the indexes
+     */
+    private void unindex(Figure figure)
+    {
+        if (grid != null) {
+            grid.remove(figure);
+        }
+        if (ids != null) {
+            ids.remove(figure.getId(), figure);
+        }
+    }
+
+    /**
+     * Give the figure with the given id
+     *
+     * @param id the figure id
+     * @return the figure with this id (may be null)
+     */
+    public Figure getFigure(int id)
+    {
+        if (ids == null) {
+            ids = new HashMap<>();
+            for (Figure figure : this) {
+                ids.put(figure.getId(), figure);
+            }
+        }
+        return ids.get(id);
+    }
+
+    /**
+     * Update the spatial index after a figure of the list has been moved or resized
+     *
+     * @param figure the figure that has been moved or resized
+     */
+    public void reindex(Figure figure)
+    {
+        if (grid != null) {
+            grid.update(figure);
+        }
+    }
+
+    /**
+     * Draw the figures using the given graphics context. Figures outside the clip area of the
+     * graphics context are skipped.
      *
      * @param g2d   graphics context used to draw the figures
      * @param scale the scale to apply to draw figures
      * @param tx    the x translation to apply to draw figures
      * @param ty    the y translation to apply to draw figures
+     * @return the number of figures drawn, the new figure excluded
      */
-    public void draw(Graphics2D g2d, double scale, double tx, double ty)
+    public int draw(Graphics2D g2d, double scale, double tx, double ty)
     {
+        Rectangle clip = g2d.getClipBounds();
+
         // draw figures
+        int drawn = 0;
         for (Figure figure : this) {
-            figure.draw(g2d, scale, tx, ty);
+            if (clip == null || figure.isVisible(clip, scale, tx, ty)) {
+                figure.draw(g2d, scale, tx, ty);
+                drawn++;
+            }
         }
 
         // draw the new figure if any
         if (currentFigure != null) {
             currentFigure.draw(g2d, scale, tx, ty);
         }
+        return drawn;
+    }
+
+    /**
+     * Draw the figures of the list but one using the given graphics context. Figures outside the
+     * clip area of the graphics context are skipped.
+     *
+     * @param g2d      graphics context used to draw the figures
+     * @param scale    the scale to apply to draw figures
+     * @param tx       the x translation to apply to draw figures
+     * @param ty       the y translation to apply to draw figures
+     * @param excluded the figure that is not drawn (may be null)
+     * @return the number of figures drawn
+     */
+    public int draw(Graphics2D g2d, double scale, double tx, double ty, Figure excluded)
+    {
+        Rectangle clip = g2d.getClipBounds();
+        int drawn = 0;
+        for (Figure figure : this) {
+            if (figure != excluded && (clip == null || figure.isVisible(clip, scale, tx, ty))) {
+                figure.draw(g2d, scale, tx, ty);
+                drawn++;
+            }
+        }
+        return drawn;
+    }
+
+    /**
+     * Give the figure that is currently drawing
+     *
+     * @return the new figure (may be null)
+     */
+    public Figure getCurrentFigure()
+    {
+        return currentFigure;
     }
 
     /**
@@ -48,7 +260,8 @@ public class Figures extends ArrayList<Figure>
      */
     public void createFigure(Shape shape, Color color, double x, double y)
     {
-        this.currentFigure = new Figure(shape, color, x, y);
+        int id = this.idSupplier != null ? this.idSupplier.getAsInt() : LAST_ID.incrementAndGet();
+        this.currentFigure = new Figure(id, shape, color, x, y);
     }
    
     
@@ -110,11 +323,12 @@ public class Figures extends ArrayList<Figure>
      */
     public Figure getFigureAt(double x, double y)
     {
-        for (int i = this.size() - 1; i >= 0; i--) {
-            if (this.get(i).isInside(x, y)) {
-                return this.get(i);
+        if (grid == null) {
+            grid = new FiguresGrid();
+            for (Figure figure : this) {
+                grid.add(figure);
             }
         }
-        return null;
+        return grid.getFigureAt(x, y);
     }
 }
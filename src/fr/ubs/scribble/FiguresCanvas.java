@@ -7,6 +7,7 @@ import javax.swing.*;
 import java.awt.*;
 import java.awt.event.*;
 import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
 import java.rmi.RemoteException;
 
 /**
@@ -35,6 +36,16 @@ public class FiguresCanvas extends JPanel implements MouseMotionListener, MouseL
      */
     private static final int HEIGHT = 600;
 
+    /**
+     * the area of the debug overlay
+     */
+    private static final Rectangle OVERLAY_BOUNDS = new Rectangle(0, 0, 340, 76);
+
+    /**
+     * the period of the repaints of the debug overlay, in milliseconds
+     */
+    private static final int OVERLAY_MILLIS = 500;
+
     /**
      * the default cursor
      */
@@ -94,6 +105,10 @@ public class FiguresCanvas extends JPanel implements MouseMotionListener, MouseL
         return figures;
     }
 
+    public FigureAnimator getAnimator() {
+        return animator;
+    }
+
     /**
      * the figure from the list of figures that is selected (may be null)
      */
@@ -176,6 +191,37 @@ public class FiguresCanvas extends JPanel implements MouseMotionListener, MouseL
      */
     private double ty;
 
+    /**
+     * the background and the figures that are not moving, drawn once and copied at each repaint
+     */
+    private BufferedImage layer;
+
+    /**
+     * the area of the layer that must be drawn again before it is copied (null if none)
+     */
+    private Rectangle staleArea;
+
+    /**
+     * lock of the layer and stale area, that may be invalidated outside of the event dispatch thread
+     */
+    private final Object layerLock = new Object();
+
+    /**
+     * the selected figure while it is moving or resizing, drawn over the layer (may be null)
+     */
+    private Figure activeFigure;
+
+    /**
+     * the figure pressed to be moved or resized, whose changes received from the server are held
+     * until the mouse is released (may be null)
+     */
+    private Figure heldFigure;
+
+    /**
+     * moves the figures that other users are dragging
+     */
+    private final FigureAnimator animator = new FigureAnimator(this);
+
     ScribbleClient client;
     /**
      * Constructor
@@ -186,7 +232,8 @@ public class FiguresCanvas extends JPanel implements MouseMotionListener, MouseL
         setPreferredSize(new Dimension(WIDTH, HEIGHT));
         setBackground(Color.WHITE);
         this.client = client_;
-        this.figures = client.getFiguresBox().getFigures();
+        this.figures = client.loadFigures();
+        this.figures.setIdSupplier(client.getIdLease());
 
         // register listeners
         addMouseListener(this);
@@ -194,16 +241,23 @@ public class FiguresCanvas extends JPanel implements MouseMotionListener, MouseL
         addKeyListener(this);
         setFocusable(true);
         requestFocusInWindow();
+
+        if (client.getMetrics().isOverlayEnabled()) {
+            new Timer(OVERLAY_MILLIS, e -> repaint(OVERLAY_BOUNDS)).start();
+        }
     }
 
     /**
-     * Draws the canvas content: all figures and the currently drawing figure if any
+     * Draws the canvas content: all figures and the currently drawing figure if any. The figures
+     * that do not change are copied from the layer, and only the figure that is moving, resizing
+     * or drawing is drawn again.
      *
      * @param g the graphics context.
      */
     @Override
     protected void paintComponent(Graphics g)
     {
+        long start = System.nanoTime();
         super.paintComponent(g);
         Graphics2D g2d = (Graphics2D) g;
         int width = getWidth();
@@ -215,6 +269,65 @@ public class FiguresCanvas extends JPanel implements MouseMotionListener, MouseL
             tx = (width - WIDTH * scale) / 2;
             ty = (height - HEIGHT * scale) / 2;
 
+            // draw the background and the figures that do not change
+            updateLayer(width, height);
+            g2d.drawImage(layer, 0, 0, null);
+
+            // draw the figure that is moving or resizing and the figure that is drawing
+            if (activeFigure != null) {
+                activeFigure.draw(g2d, scale, tx, ty);
+            }
+            if (figures.getCurrentFigure() != null) {
+                figures.getCurrentFigure().draw(g2d, scale, tx, ty);
+            }
+            if (client.getMetrics().isOverlayEnabled()) {
+                paintOverlay(g2d);
+            }
+        }
+        client.getMetrics().painted(start);
+    }
+
+    /**
+     * Draw the metrics of the client over the figures
+     *
+     * @param g2d the graphics context
+     */
+    private void paintOverlay(Graphics2D g2d)
+    {
+        g2d.setColor(new Color(0, 0, 0, 160));
+        g2d.fill(OVERLAY_BOUNDS);
+        g2d.setColor(Color.WHITE);
+        g2d.setFont(new Font(Font.MONOSPACED, Font.PLAIN, 12));
+        int y = 16;
+        for (String line : client.getMetrics().getOverlay()) {
+            g2d.drawString(line, 6, y);
+            y += 16;
+        }
+    }
+
+    /**
+     * Draw the stale area of the layer again, or the whole layer if the canvas size has changed
+     *
+     * @param width  the canvas width
+     * @param height the canvas height
+     */
+    private void updateLayer(int width, int height)
+    {
+        Rectangle area;
+        synchronized (layerLock) {
+            if (layer == null || layer.getWidth() != width || layer.getHeight() != height) {
+                GraphicsConfiguration configuration = getGraphicsConfiguration();
+                layer = configuration != null ? configuration.createCompatibleImage(width, height)
+                        : new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+                staleArea = new Rectangle(0, 0, width, height);
+            }
+            area = staleArea;
+            staleArea = null;
+        }
+        if (area != null) {
+            Graphics2D g2d = layer.createGraphics();
+            g2d.clip(area);
+
             // draw the background
             g2d.setColor(Color.BLACK);
             g2d.fill(new Rectangle2D.Double(0, 0, width, height));
@@ -222,8 +335,31 @@ public class FiguresCanvas extends JPanel implements MouseMotionListener, MouseL
             g2d.fill(new Rectangle2D.Double(tx, ty, WIDTH * scale, HEIGHT * scale));
 
             // draw the figures
-            figures.draw(g2d, scale, tx, ty);
+            int drawn = figures.draw(g2d, scale, tx, ty, activeFigure);
+            g2d.dispose();
+            client.getMetrics().drawn(drawn, Math.max(figures.size() - drawn - (activeFigure != null ? 1 : 0), 0));
+        }
+    }
+
+    /**
+     * Mark an area of the layer as stale and repaint it
+     *
+     * @param area the area, in pixels
+     */
+    private void invalidate(Rectangle area)
+    {
+        synchronized (layerLock) {
+            staleArea = staleArea == null ? area : staleArea.union(area);
         }
+        repaint(area);
+    }
+
+    /**
+     * Repaint all the figures, e.g. after the list of figures has been replaced
+     */
+    public void repaintFigures()
+    {
+        invalidate(new Rectangle(0, 0, getWidth(), getHeight()));
     }
 
     /**
@@ -248,13 +384,8 @@ public class FiguresCanvas extends JPanel implements MouseMotionListener, MouseL
         if (this.selectedFigure != null) {
             this.selectedFigure.setColor(color);
             // !!! the figure color has been updated
-            try {
-                this.client.getFiguresBox().updateFigure(selectedFigure);
-            } catch (RemoteException e) {
-                // TODO Auto-generated catch block
-                e.printStackTrace();
-            }
-            repaint();
+            this.client.updateFigure(selectedFigure);
+            repaintFigure(selectedFigure);
         }
         requestFocusInWindow();
     }
@@ -278,6 +409,8 @@ public class FiguresCanvas extends JPanel implements MouseMotionListener, MouseL
             figureStartY = selectedFigure.getY();
             figureStartWidth = selectedFigure.getWidth();
             figureStartHeight = selectedFigure.getHeight();
+            heldFigure = selectedFigure;
+            this.client.holdFigure(heldFigure);
         } else { // create a new figure
             figures.createFigure(shape, color, startX, startY);
         }
@@ -299,27 +432,25 @@ public class FiguresCanvas extends JPanel implements MouseMotionListener, MouseL
                 Figure selectedFigure = figures.addCurrentFigure();
                 select(selectedFigure, x, y);
                 // !!! the figure has been added
-                try {
-                    this.client.getFiguresBox().addFigure(selectedFigure);
-                } catch (RemoteException e) {
-                    // TODO Auto-generated catch block
-                    e.printStackTrace();
-                }
+                this.client.addFigure(selectedFigure);
             } else if (selectedFigure != null) {
+                this.client.cancelDrag();
                 selectedFigure.update();
+                figures.reindex(selectedFigure);
+                activeFigure = null;
+                repaintFigure(selectedFigure);
                 // !!! the figure location or size has been updated
-                try {
-                    this.client.getFiguresBox().updateFigure(selectedFigure);
-                } catch (RemoteException e) {
-                    // TODO Auto-generated catch block
-                    e.printStackTrace();
-                }
+                this.client.updateFigure(selectedFigure);
             }
         } else { // select the figure at the mouse location or deselect the currently selected figure
             Figure selectedFigure = figures.getFigureAt(x, y);
             select(selectedFigure, x, y);
         }
         dragging = false;
+        if (heldFigure != null) {
+            this.client.releaseFigure(heldFigure);
+            heldFigure = null;
+        }
     }
 
     /**
@@ -371,10 +502,15 @@ public class FiguresCanvas extends JPanel implements MouseMotionListener, MouseL
             // start dragging
             if (!moveCursor && !resizeCursor) {
                 select(null, x, y);
+            } else { // remove the selected figure from the layer, it is drawn over it until the mouse is released
+                repaintFigure(selectedFigure);
+                activeFigure = selectedFigure;
             }
             dragging = true;
         }
         if (dragging) {
+            Figure figure = moveCursor || resizeCursor ? selectedFigure : figures.getCurrentFigure();
+            Rectangle before = figure == null ? null : getDrawBounds(figure);
             if (moveCursor) { // move the selected figure
                 selectedFigure.setX(figureStartX + x - startX);
                 selectedFigure.setY(figureStartY + y - startY);
@@ -394,7 +530,12 @@ public class FiguresCanvas extends JPanel implements MouseMotionListener, MouseL
             } else { // resize the currently drawing figure
                 figures.resizeCurrentFigure(x - startX, y - startY);
             }
-            repaint();
+            if (figure != null) { // repaint the area covered by the figure before and after the change
+                repaint(before.union(getDrawBounds(figure)));
+            }
+            if (moveCursor || resizeCursor) {
+                this.client.streamDrag(selectedFigure);
+            }
         }
     }
 
@@ -482,16 +623,11 @@ public class FiguresCanvas extends JPanel implements MouseMotionListener, MouseL
     public void keyPressed(KeyEvent event)
     {
         if (event.getKeyCode() == KeyEvent.VK_DELETE && this.selectedFigure != null) {
+            repaintFigure(this.selectedFigure);
             figures.remove(this.selectedFigure);
             // !!! the figure has been removed
-            try {
-                this.client.getFiguresBox().removeFigure(this.selectedFigure);
-            } catch (RemoteException e) {
-                // TODO Auto-generated catch block
-                e.printStackTrace();
-            }
+            this.client.removeFigure(this.selectedFigure);
             this.selectedFigure = null;
-            repaint();
         }
     }
 
@@ -520,6 +656,27 @@ public class FiguresCanvas extends JPanel implements MouseMotionListener, MouseL
         }
     }
 
+    /**
+     * Point the selected figure and the moving figure to the figures with the same ids, after the
+     * list of figures has been replaced. A figure that is no longer in the list is unselected.
+     */
+    public void rebindFigures()
+    {
+        if (this.selectedFigure != null) {
+            Figure figure = figures.getFigure(this.selectedFigure.getId());
+            if (figure != this.selectedFigure) {
+                this.selectedFigure.setSelected(false);
+                this.selectedFigure = figure;
+                if (figure != null) {
+                    figure.setSelected(true);
+                }
+            }
+        }
+        if (this.activeFigure != null) {
+            this.activeFigure = figures.getFigure(this.activeFigure.getId());
+        }
+    }
+
     /**
      * Select the given figure (if not null) and unselect the previously selected figure (if any)
      *
@@ -535,17 +692,45 @@ public class FiguresCanvas extends JPanel implements MouseMotionListener, MouseL
         if (this.selectedFigure != null) {
             // unselect the previously selected figure
             this.selectedFigure.setSelected(false);
+            repaintFigure(this.selectedFigure);
             this.selectedFigure = null;
-            repaint();
         }
         if (selectedFigure != null) {
             this.selectedFigure = selectedFigure;
             this.selectedFigure.setSelected(true);
             setMoveCursor(selectedFigure, x, y);
+            repaintFigure(selectedFigure);
+        }
+    }
+
+    /**
+     * Repaint the area of the canvas covered by the given figure, including its selection marks.
+     * Unless the figure is moving or resizing, this area of the layer is drawn again.
+     *
+     * @param figure the figure to be repainted
+     */
+    public void repaintFigure(Figure figure)
+    {
+        if (scale == 0) { // not painted yet
             repaint();
+        } else if (figure == activeFigure) {
+            repaint(getDrawBounds(figure));
+        } else {
+            invalidate(getDrawBounds(figure));
         }
     }
 
+    /**
+     * Give the area of the canvas covered by the given figure, including its selection marks
+     *
+     * @param figure a figure
+     * @return the area covered by the figure, in pixels
+     */
+    private Rectangle getDrawBounds(Figure figure)
+    {
+        return figure.getDrawBounds(scale, tx, ty).getBounds();
+    }
+
     /**
      * Give the x location of the mouse represented by the given mouse event after applying the transform
      * applied to the canvas
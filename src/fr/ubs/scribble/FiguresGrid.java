@@ -0,0 +1,186 @@
+package fr.ubs.scribble;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A spatial index of figures: a uniform grid where each figure is registered in the cells covered
+ * by its bounding box. Figures covering too many cells are kept in a separate list. Each figure has
+ * an order number, so that the figure at the forefront can be found among the figures of a cell.
+ */
+class FiguresGrid
+{
+    /**
+     * the size of a cell
+     */
+    static final double CELL_SIZE = 64;
+
+    /**
+     * the maximum number of cells a figure is registered in
+     */
+    static final int MAX_CELLS = 64;
+
+    /**
+     * the margin around figures, as in {@link Figure#isInside(double, double)}
+     */
+    private static final double MARGIN = 2;
+
+    /**
+     * the figures registered in each cell, by cell key
+     */
+    private final Map<Long, List<Entry>> cells = new HashMap<>();
+
+    /**
+     * the figures covering more than {@link #MAX_CELLS} cells
+     */
+    private final List<Entry> large = new ArrayList<>();
+
+    /**
+     * the entry of each figure
+     */
+    private final Map<Figure, Entry> entries = new IdentityHashMap<>();
+
+    /**
+     * the order number of the last added figure
+     */
+    private long lastOrder;
+
+    /**
+     * A figure registered in the grid, with the cells it is registered in
+     */
+    private static class Entry
+    {
+        final Figure figure;
+        final long order;
+        int x0, y0, x1, y1;
+        boolean large;
+
+        Entry(Figure figure, long order)
+        {
+            this.figure = figure;
+            this.order = order;
+        }
+    }
+
+    /**
+     * Register a figure at the forefront
+     *
+     * @param figure the figure
+     */
+    void add(Figure figure)
+    {
+        Entry entry = new Entry(figure, ++lastOrder);
+        entries.put(figure, entry);
+        link(entry);
+    }
+
+    /**
+     * Unregister a figure
+     *
+     * @param figure the figure
+     */
+    void remove(Figure figure)
+    {
+        Entry entry = entries.remove(figure);
+        if (entry != null) {
+            unlink(entry);
+        }
+    }
+
+    /**
+     * Register a figure again after it has been moved or resized, keeping its order
+     *
+     * @param figure the figure
+     */
+    void update(Figure figure)
+    {
+        Entry entry = entries.get(figure);
+        if (entry != null) {
+            unlink(entry);
+            link(entry);
+        }
+    }
+
+    /**
+     * Give the figure at the forefront at the given location
+     *
+     * @param x x coordinate of the location
+     * @param y y coordinate of the location
+     * @return a figure at the given location (may be null)
+     */
+    Figure getFigureAt(double x, double y)
+    {
+        Entry found = find(large, null, x, y);
+        List<Entry> cell = cells.get(key(cell(x), cell(y)));
+        if (cell != null) {
+            found = find(cell, found, x, y);
+        }
+        return found == null ? null : found.figure;
+    }
+
+    private Entry find(List<Entry> entries, Entry found, double x, double y)
+    {
+        for (Entry entry : entries) {
+            if ((found == null || entry.order > found.order) && entry.figure.isInside(x, y)) {
+                found = entry;
+            }
+        }
+        return found;
+    }
+
+    private void link(Entry entry)
+    {
+        Figure figure = entry.figure;
+        double x0 = Math.min(figure.getX(), figure.getX() + figure.getWidth()) - MARGIN;
+        double y0 = Math.min(figure.getY(), figure.getY() + figure.getHeight()) - MARGIN;
+        double x1 = Math.max(figure.getX(), figure.getX() + figure.getWidth()) + MARGIN;
+        double y1 = Math.max(figure.getY(), figure.getY() + figure.getHeight()) + MARGIN;
+        entry.x0 = cell(x0);
+        entry.y0 = cell(y0);
+        entry.x1 = cell(x1);
+        entry.y1 = cell(y1);
+        entry.large = ((long) entry.x1 - entry.x0 + 1) * ((long) entry.y1 - entry.y0 + 1) > MAX_CELLS;
+        if (entry.large) {
+            large.add(entry);
+            return;
+        }
+        for (int cx = entry.x0; cx <= entry.x1; cx++) {
+            for (int cy = entry.y0; cy <= entry.y1; cy++) {
+                cells.computeIfAbsent(key(cx, cy), k -> new ArrayList<>(4)).add(entry);
+            }
+        }
+    }
+
+    private void unlink(Entry entry)
+    {
+        if (entry.large) {
+            large.remove(entry);
+            return;
+        }
+        for (int cx = entry.x0; cx <= entry.x1; cx++) {
+            for (int cy = entry.y0; cy <= entry.y1; cy++) {
+                long key = key(cx, cy);
+                List<Entry> cell = cells.get(key);
+                if (cell != null) {
+                    cell.remove(entry);
+                    if (cell.isEmpty()) {
+                        cells.remove(key);
+                    }
+                }
+            }
+        }
+    }
+
+    private static int cell(double coordinate)
+    {
+        return (int) Math.floor(coordinate / CELL_SIZE);
+    }
+
+    private static long key(int cx, int cy)
+    {
+        return ((long) cx << 32) | (cy & 0xffffffffL);
+    }
+}
@@ -0,0 +1,73 @@
+package fr.ubs.scribble;
+
+import fr.ubs.scribble.shapes.Circle;
+import fr.ubs.scribble.shapes.Oval;
+import fr.ubs.scribble.shapes.Rectangle;
+import fr.ubs.scribble.shapes.Shape;
+import fr.ubs.scribble.shapes.Square;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Compact codes for the shapes known by every client and server. Shapes have no state but
+ * their name, so the code is enough to find a shared instance of the shape on the receiving
+ * side. Shapes that are not registered (e.g. downloaded from a remote codebase) have no code.
+ */
+public final class ShapeRegistry
+{
+    /**
+     * the code of the shapes that are not registered
+     */
+    public static final int UNKNOWN = -1;
+
+    /**
+     * the registered shapes, indexed by code
+     */
+    private static final Shape[] SHAPES = {new Rectangle(), new Square(), new Oval(), new Circle()};
+
+    /**
+     * the codes of the registered shapes, by shape class
+     */
+    private static final Map<Class<?>, Integer> CODES = new HashMap<>();
+
+    static {
+        for (int i = 0; i < SHAPES.length; i++) {
+            CODES.put(SHAPES[i].getClass(), i);
+        }
+    }
+
+    /**
+     * Constructor
+     */
+    private ShapeRegistry()
+    {
+    }
+
+    /**
+     * Give the code of the given shape
+     *
+     * @param shape a shape
+     * @return the shape code, {@link #UNKNOWN} if the shape is not registered
+     */
+    public static int getCode(Shape shape)
+    {
+        Integer code = CODES.get(shape.getClass());
+        return code == null ? UNKNOWN : code;
+    }
+
+    /**
+     * Give the shared instance of the shape with the given code
+     *
+     * @param code a shape code
+     * @return the shape with the given code
+     * @throws IllegalArgumentException if no shape has this code
+     */
+    public static Shape getShape(int code)
+    {
+        if (code < 0 || code >= SHAPES.length) {
+            throw new IllegalArgumentException("Unknown shape code " + code);
+        }
+        return SHAPES[code];
+    }
+}
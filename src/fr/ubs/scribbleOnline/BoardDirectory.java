@@ -0,0 +1,57 @@
+package fr.ubs.scribbleOnline;
+
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+import java.util.List;
+
+/**
+ * The named boards of a server. Each board has its own figures and clients.
+ * <p>
+ * When several servers share the boards, each board is owned by one of them (see {@link BoardRing})
+ * and any of them can be asked to open it.
+ */
+public interface BoardDirectory extends Remote {
+
+    /**
+     * Open a board, created if it does not exist
+     *
+     * @param name the board name: letters, digits, '-' and '_'
+     * @return the board
+     */
+    FiguresBox openBoard(String name) throws RemoteException;
+
+    /**
+     * Open a board owned by this server, never redirects to another server
+     *
+     * @param name the board name
+     * @return the board
+     * @throws RemoteException if this server does not own the board
+     */
+    FiguresBox openOwnedBoard(String name) throws RemoteException;
+
+    /**
+     * @return the servers sharing the boards, "host:port", empty if the boards are not shared
+     */
+    List<String> getNodes() throws RemoteException;
+
+    /**
+     * Add a server to the servers sharing the boards. The boards this server no longer owns are
+     * saved and unloaded, and their clients are told to open them again.
+     *
+     * @param node the new server, "host:port"
+     */
+    void addNode(String node) throws RemoteException;
+
+    /**
+     * Remove a server added by {@link #addNode(String)} that could not join all the others. The
+     * boards it would have owned are loaded again when they are opened.
+     *
+     * @param node the server, "host:port"
+     */
+    void removeNode(String node) throws RemoteException;
+
+    /**
+     * @return the names of the boards, loaded or not
+     */
+    List<String> listBoards() throws RemoteException;
+}
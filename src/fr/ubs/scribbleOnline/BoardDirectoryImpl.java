@@ -0,0 +1,389 @@
+package fr.ubs.scribbleOnline;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.rmi.NoSuchObjectException;
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * The boards of a server. A board is loaded the first time it is opened, and unloaded when it has
+ * had no client and no activity for {@link #IDLE_MINUTES}, if it is saved on disk.
+ * <p>
+ * The boards are partitioned among a fixed number of worker threads by the hash of their name:
+ * the flushes and periodic tasks of a board always run on the same worker, so a busy board only
+ * delays the boards of its own worker.
+ * <p>
+ * Several servers sharing a data directory can share the boards: each board is owned by one server,
+ * given by a {@link BoardRing}. A server asked to open a board it does not own gives the board of
+ * the owner, so the clients then talk to the owner directly. A new server joins by asking the
+ * others to add it: each of them unloads the boards the new server now owns, which the new server
+ * then loads from the shared data directory.
+ */
+public class BoardDirectoryImpl implements BoardDirectory {
+
+    /**
+     * the board bound as "FiguresBox", never unloaded
+     */
+    public static final String DEFAULT_BOARD = "default";
+
+    /**
+     * the directory of the named boards, in the data directory
+     */
+    static final String BOARDS = "boards";
+
+    /**
+     * time without client nor activity after which a board is unloaded
+     */
+    static final long IDLE_MINUTES = 10;
+
+    private static final Pattern NAME = Pattern.compile("[A-Za-z0-9_-]{1,64}");
+
+    /**
+     * A loaded board and its stub
+     */
+    private static class Board {
+        final FiguresBoxImpl box;
+        final FiguresBox stub;
+
+        Board(FiguresBoxImpl box, FiguresBox stub) {
+            this.box = box;
+            this.stub = stub;
+        }
+    }
+
+    private final int port;
+
+    /**
+     * the directory where the boards are saved, null if they are only kept in memory
+     */
+    private final Path dataDir;
+    private final Map<String, Board> boards = new ConcurrentHashMap<>();
+
+    /**
+     * this server, "host:port", null if the boards are not shared
+     */
+    private final String self;
+
+    /**
+     * the servers sharing the boards, null if the boards are not shared
+     */
+    private volatile BoardRing ring;
+
+    /**
+     * released once this server has joined the others, so that it does not load a board before
+     * its previous owner has saved it
+     */
+    private final CountDownLatch joined = new CountDownLatch(1);
+
+    /**
+     * the directories of the other servers, by node
+     */
+    private final Map<String, BoardDirectory> peers = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService[] workers;
+    private final ScheduledExecutorService evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "board-evictor");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Constructor
+     *
+     * @param port    the port the boards are exported on
+     * @param dataDir the directory where the boards are saved, null to keep them only in memory
+     * @param workers the number of worker threads
+     */
+    public BoardDirectoryImpl(int port, Path dataDir, int workers) {
+        this(port, dataDir, workers, null, null);
+    }
+
+    /**
+     * Constructor of a server sharing the boards with other servers
+     *
+     * @param port    the port the boards are exported on
+     * @param dataDir the directory where the boards are saved, shared by all the servers
+     * @param workers the number of worker threads
+     * @param self    this server, "host:port"
+     * @param ring    the servers sharing the boards, null if this server has to {@link #join(String)} them
+     */
+    public BoardDirectoryImpl(int port, Path dataDir, int workers, String self, BoardRing ring) {
+        this.port = port;
+        this.dataDir = dataDir;
+        this.self = self;
+        this.ring = ring;
+        if (self == null || ring != null) {
+            this.joined.countDown();
+        }
+        this.workers = new ScheduledExecutorService[workers];
+        for (int i = 0; i < workers; i++) {
+            String name = "board-worker-" + i;
+            this.workers[i] = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, name);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        this.evictor.scheduleWithFixedDelay(this::evictIdle, 1, 1, TimeUnit.MINUTES);
+    }
+
+    /**
+     * Join the servers sharing the boards: every server unloads the boards this server now owns.
+     * This server only uses the new ring once every server has added it; if one of them fails, the
+     * servers that added it remove it again, so that no two servers own the same board.
+     *
+     * @param peer one of the servers, "host:port"
+     * @throws RemoteException if a server could not add this one
+     */
+    public void join(String peer) throws RemoteException {
+        BoardRing ring = new BoardRing(getPeer(peer).getNodes()).with(this.self);
+        // look the servers up first, so that a server that cannot be reached fails the join before any change
+        Map<String, BoardDirectory> others = new TreeMap<>();
+        for (String node : ring.getNodes()) {
+            if (!node.equals(this.self)) {
+                others.put(node, getPeer(node));
+            }
+        }
+        List<String> added = new ArrayList<>();
+        for (Map.Entry<String, BoardDirectory> other : others.entrySet()) {
+            try {
+                other.getValue().addNode(this.self);
+                added.add(other.getKey());
+            } catch (RemoteException e) {
+                for (String node : added) {
+                    try {
+                        others.get(node).removeNode(this.self);
+                    } catch (RemoteException f) {
+                        ServerLog.error("Node %s not removed from %s after a failed join: %s", this.self, node, f.getMessage());
+                    }
+                }
+                throw new RemoteException("Node " + this.self + " could not join " + other.getKey(), e);
+            }
+        }
+        this.ring = ring;
+        this.joined.countDown();
+        ServerLog.info("Node %s joined %s", this.self, ring);
+    }
+
+    @Override
+    public FiguresBox openBoard(String name) throws RemoteException {
+        if (name == null || !NAME.matcher(name).matches()) {
+            throw new IllegalArgumentException("Invalid board name: " + name);
+        }
+        BoardRing ring = this.ring;
+        if (ring != null && !ring.getOwner(name).equals(this.self)) {
+            String owner = ring.getOwner(name);
+            try {
+                return getPeer(owner).openOwnedBoard(name);
+            } catch (RemoteException e) {
+                this.peers.remove(owner); // looked up again next time, in case the owner restarted
+                throw e;
+            }
+        }
+        return openOwnedBoard(name);
+    }
+
+    @Override
+    public FiguresBox openOwnedBoard(String name) throws RemoteException {
+        return openLocal(name).stub;
+    }
+
+    /**
+     * Open a board owned by this server, for the clients that do not use RMI
+     *
+     * @param name the board name
+     * @return the board
+     * @throws RemoteException if this server does not own the board
+     */
+    FiguresBoxImpl openLocalBoard(String name) throws RemoteException {
+        return openLocal(name).box;
+    }
+
+    private Board openLocal(String name) throws RemoteException {
+        if (name == null || !NAME.matcher(name).matches()) {
+            throw new IllegalArgumentException("Invalid board name: " + name);
+        }
+        try {
+            this.joined.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RemoteException("Interrupted while joining the other servers");
+        }
+        try {
+            // opening is an access, so the board cannot be unloaded before the first call of the client
+            return this.boards.compute(name, (key, board) -> {
+                Board opened = board != null ? board : load(key);
+                opened.box.touch();
+                return opened;
+            });
+        } catch (UncheckedIOException e) {
+            throw new RemoteException("Cannot load board " + name, e.getCause());
+        } catch (IllegalStateException e) {
+            throw new RemoteException(e.getMessage());
+        }
+    }
+
+    @Override
+    public List<String> getNodes() throws RemoteException {
+        BoardRing ring = this.ring;
+        return ring == null ? Collections.emptyList() : ring.getNodes();
+    }
+
+    @Override
+    public synchronized void addNode(String node) throws RemoteException {
+        if (this.ring == null || this.ring.contains(node)) {
+            return;
+        }
+        this.ring = this.ring.with(node);
+        this.peers.remove(node);
+        // the boards being loaded have checked the new ring, or are moved below once loaded
+        for (String name : this.boards.keySet()) {
+            this.boards.computeIfPresent(name, (key, board) -> {
+                if (this.ring.getOwner(key).equals(this.self)) {
+                    return board;
+                }
+                unload(key, board);
+                board.box.getCallbackQueues().forEach(queue -> CompletableFuture.runAsync(() -> {
+                    try {
+                        queue.getCallback().boardMoved();
+                    } catch (RemoteException e) {
+                        ServerLog.warn("Client of board %s not told it moved: %s", key, e.getMessage());
+                    }
+                }));
+                return null;
+            });
+        }
+        ServerLog.info("Node %s added, nodes: %s", node, this.ring);
+    }
+
+    @Override
+    public synchronized void removeNode(String node) throws RemoteException {
+        if (this.ring == null || !this.ring.contains(node) || node.equals(this.self)) {
+            return;
+        }
+        this.ring = this.ring.without(node);
+        this.peers.remove(node);
+        ServerLog.info("Node %s removed, nodes: %s", node, this.ring);
+    }
+
+    /**
+     * @return the directory of another server
+     */
+    private BoardDirectory getPeer(String node) throws RemoteException {
+        BoardDirectory peer = this.peers.get(node);
+        if (peer == null) {
+            int colon = node.lastIndexOf(':');
+            try {
+                peer = (BoardDirectory) LocateRegistry.getRegistry(node.substring(0, colon),
+                        Integer.parseInt(node.substring(colon + 1))).lookup("Boards");
+            } catch (NotBoundException e) {
+                throw new RemoteException("No board directory on " + node, e);
+            }
+            this.peers.put(node, peer);
+        }
+        return peer;
+    }
+
+    @Override
+    public List<String> listBoards() throws RemoteException {
+        TreeSet<String> names = new TreeSet<>(this.boards.keySet());
+        names.add(DEFAULT_BOARD);
+        if (this.dataDir != null && Files.isDirectory(this.dataDir.resolve(BOARDS))) {
+            try (DirectoryStream<Path> dirs = Files.newDirectoryStream(this.dataDir.resolve(BOARDS), Files::isDirectory)) {
+                dirs.forEach(dir -> names.add(dir.getFileName().toString()));
+            } catch (IOException e) {
+                throw new RemoteException("Cannot list the boards", e);
+            }
+        }
+        return new ArrayList<>(names);
+    }
+
+    /**
+     * @return the boards loaded, by name
+     */
+    Map<String, FiguresBoxImpl> getLoadedBoards() {
+        Map<String, FiguresBoxImpl> loaded = new TreeMap<>();
+        this.boards.forEach((name, board) -> loaded.put(name, board.box));
+        return loaded;
+    }
+
+    /**
+     * @return the directory of a board: the data directory itself for the default board
+     */
+    Path getBoardDir(String name) {
+        return name.equals(DEFAULT_BOARD) ? this.dataDir : this.dataDir.resolve(BOARDS).resolve(name);
+    }
+
+    private Board load(String name) {
+        BoardRing ring = this.ring;
+        if (ring != null && !ring.getOwner(name).equals(this.self)) {
+            throw new IllegalStateException("Board " + name + " is owned by " + ring.getOwner(name));
+        }
+        ScheduledExecutorService worker = this.workers[Math.floorMod(name.hashCode(), this.workers.length)];
+        try {
+            FiguresBoxImpl box = this.dataDir == null ? new FiguresBoxImpl(worker)
+                    : new FiguresBoxImpl(new FiguresJournal(getBoardDir(name)), worker);
+            return new Board(box, (FiguresBox) UnicastRemoteObject.exportObject(box, this.port));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void unload(String name, Board board) {
+        try {
+            UnicastRemoteObject.unexportObject(board.box, true);
+        } catch (NoSuchObjectException e) {
+            // already unexported
+        }
+        board.box.close();
+        ServerLog.info("Board %s unloaded", name);
+    }
+
+    /**
+     * Unload the saved boards that have had no client and no activity for a while
+     */
+    void evictIdle() {
+        long before = System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(IDLE_MINUTES);
+        for (String name : this.boards.keySet()) {
+            this.boards.computeIfPresent(name, (key, board) -> {
+                if (key.equals(DEFAULT_BOARD) || !board.box.isPersistent()
+                        || !board.box.getCallbackQueues().isEmpty() || board.box.getLastAccess() > before) {
+                    return board;
+                }
+                unload(key, board);
+                return null;
+            });
+        }
+    }
+
+    /**
+     * Unload all the boards, writing their pending changes
+     */
+    public void close() {
+        this.evictor.shutdownNow();
+        for (String name : this.boards.keySet()) {
+            this.boards.computeIfPresent(name, (key, board) -> {
+                unload(key, board);
+                return null;
+            });
+        }
+    }
+}
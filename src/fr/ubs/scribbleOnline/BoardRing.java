@@ -0,0 +1,103 @@
+package fr.ubs.scribbleOnline;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * A consistent hash ring of the server nodes, giving the node that owns a board. Each node is
+ * placed at {@link #POINTS} points of the ring, and a board is owned by the node of the first point
+ * after the hash of its name. When a node is added, only the boards between its points and the
+ * previous points change owner. Immutable.
+ */
+public class BoardRing {
+
+    /**
+     * number of points of each node on the ring
+     */
+    static final int POINTS = 64;
+
+    /**
+     * the nodes ("host:port"), by point
+     */
+    private final TreeMap<Integer, String> points = new TreeMap<>();
+    private final TreeSet<String> nodes;
+
+    /**
+     * Constructor
+     *
+     * @param nodes the nodes, "host:port"
+     */
+    public BoardRing(Collection<String> nodes) {
+        if (nodes.isEmpty()) {
+            throw new IllegalArgumentException("A ring needs at least one node");
+        }
+        this.nodes = new TreeSet<>(nodes);
+        for (String node : this.nodes) {
+            for (int i = 0; i < POINTS; i++) {
+                this.points.put(hash(node + "#" + i), node);
+            }
+        }
+    }
+
+    /**
+     * @return a ring with the nodes of this one and the given node
+     */
+    public BoardRing with(String node) {
+        List<String> nodes = new ArrayList<>(this.nodes);
+        nodes.add(node);
+        return new BoardRing(nodes);
+    }
+
+    /**
+     * @return a ring with the nodes of this one but the given node
+     */
+    public BoardRing without(String node) {
+        List<String> nodes = new ArrayList<>(this.nodes);
+        nodes.remove(node);
+        return new BoardRing(nodes);
+    }
+
+    /**
+     * @param board the board name
+     * @return the node that owns the board
+     */
+    public String getOwner(String board) {
+        Map.Entry<Integer, String> point = this.points.ceilingEntry(hash(board));
+        return point != null ? point.getValue() : this.points.firstEntry().getValue();
+    }
+
+    /**
+     * @return the nodes, sorted
+     */
+    public List<String> getNodes() {
+        return new ArrayList<>(this.nodes);
+    }
+
+    public boolean contains(String node) {
+        return this.nodes.contains(node);
+    }
+
+    /**
+     * @return the first 4 bytes of the MD5 digest of a key, which are evenly distributed
+     */
+    private static int hash(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes(StandardCharsets.UTF_8));
+            return (digest[0] & 0xff) << 24 | (digest[1] & 0xff) << 16 | (digest[2] & 0xff) << 8 | (digest[3] & 0xff);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return this.nodes.toString();
+    }
+}
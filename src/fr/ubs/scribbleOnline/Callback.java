@@ -3,9 +3,20 @@ package fr.ubs.scribbleOnline;
 import java.rmi.Remote;
 import java.rmi.RemoteException;
 
-import fr.ubs.scribble.Figure;
-
 public interface Callback extends Remote {
-   
-    public void edit(Figure figure) throws RemoteException;
+
+    /**
+     * Apply a batch of changes, in order
+     */
+    public void editAll(DeltaBatch batch) throws RemoteException;
+
+    /**
+     * The board is now served by another server: it must be opened again from the board directory
+     */
+    public void boardMoved() throws RemoteException;
+
+    /**
+     * Does nothing: called by the server to check that the client is still alive
+     */
+    public void ping() throws RemoteException;
 }
@@ -1,42 +1,460 @@
 package fr.ubs.scribbleOnline;
 
+import java.rmi.NoSuchObjectException;
 import java.rmi.RemoteException;
 import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.swing.JOptionPane;
+import javax.swing.SwingUtilities;
 
 import fr.ubs.scribble.Figure;
+import fr.ubs.scribble.Figures;
+import fr.ubs.scribble.FiguresCanvas;
+
+/**
+ * Receives the changes of the board. The changes are queued by the RMI threads and applied on the
+ * event dispatch thread, all the changes queued so far at once, so that the figures are only
+ * modified by the thread that draws them, and the areas to be repainted are merged by Swing into
+ * a single repaint.
+ * <p>
+ * The ids of the figures removed recently are remembered (tombstones), so that a change received
+ * late, or a snapshot downloaded before a removal, cannot bring a removed figure back.
+ * <p>
+ * When the board moves to another server, or when it is not exported anymore (server restarted,
+ * board unloaded), it is opened again and downloaded again: the revisions of the new server are not
+ * related to the previous ones. The user is told when the board cannot be opened again.
+ * <p>
+ * The server calls the callback at least every {@link CallbackQueue#PING_SECONDS}. When nothing
+ * is received for twice as long, the server may have dropped the callback: it is registered again
+ * and the changes missed are downloaded.
+ * <p>
+ * The edits of the user are applied to the local figures at once and sent in the background (see
+ * {@link EditSender}). Until the edits of a figure are acknowledged, the changes of this figure
+ * received from the server are held; the last one is applied once the edits are acknowledged, so
+ * the server state wins if another edit was accepted after ours, or if ours was rejected. The
+ * changes of a figure the user is moving or resizing are held the same way, from the moment the
+ * mouse is pressed on it (see {@link #hold(int)}).
+ * <p>
+ * The server only accepts an update whose version follows the version of the figure, so the
+ * latest version wins on every client: a figure is never replaced by an older version of itself.
+ */
+public class CallbackImpl extends UnicastRemoteObject implements Callback, EditSender.Listener{
 
-public class CallbackImpl extends UnicastRemoteObject implements Callback{
+    private static final long serialVersionUID = 1L;
 
     ScribbleClient client;
-    
+
+    /**
+     * the changes waiting to be applied: delta batches, or figures replacing all the local figures
+     */
+    private final Queue<Object> incoming = new ConcurrentLinkedQueue<>();
+
+    /**
+     * true when the changes are going to be applied
+     */
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+
+    /**
+     * the revision of the board after the changes queued so far
+     */
+    private long received;
+
+    /**
+     * the removal time of the recently removed figures, by id, oldest first. Only used on the
+     * event dispatch thread.
+     */
+    private final Map<Integer, Long> tombstones = new LinkedHashMap<>();
+
+    /**
+     * the number of edits not acknowledged yet and of holds not released yet, by figure id (only
+     * used on the event dispatch thread)
+     */
+    private final Map<Integer, Integer> unacked = new HashMap<>();
+
+    /**
+     * the changes received from the server for the figures that have edits not acknowledged yet,
+     * by figure id (only used on the event dispatch thread)
+     */
+    private final Map<Integer, Delta> held = new HashMap<>();
+
+    /**
+     * An edit acknowledged by the server
+     */
+    private static class Ack {
+        final Delta edit;
+        final int count;
+        final boolean accepted;
+
+        Ack(Delta edit, int count, boolean accepted) {
+            this.edit = edit;
+            this.count = count;
+            this.accepted = accepted;
+        }
+    }
+
+    /**
+     * true once a change received has modified the local figures (only used on the event dispatch thread)
+     */
+    private boolean changed;
+
+    /**
+     * true while the board is opened again, the changes received meanwhile are ignored
+     */
+    private boolean reconnecting;
+
+    /**
+     * true once the user has been told that the board cannot be opened again, until it is opened again
+     */
+    private final AtomicBoolean lost = new AtomicBoolean();
+
+    /**
+     * the last time the server called this callback (System.nanoTime)
+     */
+    private volatile long lastHeard = System.nanoTime();
+
+    /**
+     * checks that the server still calls this callback
+     */
+    private final ScheduledExecutorService watchdog = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "callback-watchdog");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * A snapshot replacing all the local figures, and its revision
+     */
+    private static class Reload {
+        final Figures figures;
+        final long revision;
+
+        Reload(Figures figures, long revision) {
+            this.figures = figures;
+            this.revision = revision;
+        }
+    }
+
     public CallbackImpl(ScribbleClient client) throws RemoteException {
         this.client = client;
+        this.received = client.getRevision();
+        this.watchdog.scheduleWithFixedDelay(this::checkHeard, CallbackQueue.PING_SECONDS,
+                CallbackQueue.PING_SECONDS, TimeUnit.SECONDS);
     }
 
     @Override
-    public void edit(Figure figure) throws RemoteException {
-        boolean exist = false;
-        Figure toRemove = null;
-        for (Figure f : this.client.getCanvas().getFigures()) {
-            if (f.getId()==(figure.getId())) {
-                exist = true;
-                toRemove = f;
+    public synchronized void editAll(DeltaBatch batch) throws RemoteException {
+        lastHeard = System.nanoTime();
+        if (reconnecting) {
+            return;
+        }
+        if (batch.getPrevious() > received) { // some changes were missed
+            resync();
+        }
+        enqueue(batch);
+        received = Math.max(received, batch.getSequence());
+    }
+
+    /**
+     * Queue the changes missed since the revision of the last queued changes, or a whole snapshot
+     * if the server no longer has them
+     */
+    public synchronized void resync() throws RemoteException {
+        DeltaBatch changes = client.getFiguresBox().getChangesSince(received);
+        if (changes != null) {
+            enqueue(changes);
+            received = changes.getSequence();
+        } else { // the local figures are going to be replaced, the changes queued before are obsolete
+            reload();
+        }
+    }
+
+    /**
+     * Queue a whole snapshot of the board
+     */
+    private synchronized void reload() throws RemoteException {
+        Figures figures = client.loadFigures();
+        received = client.getRevision();
+        enqueue(new Reload(figures, received));
+    }
+
+    @Override
+    public void ping() throws RemoteException {
+        lastHeard = System.nanoTime();
+    }
+
+    @Override
+    public void boardMoved() throws RemoteException {
+        lastHeard = System.nanoTime();
+        new Thread(this::reconnect, "board-reconnect").start();
+    }
+
+    /**
+     * Register again and download the changes missed if the server has not called this callback
+     * for twice the ping period, on the watchdog thread
+     */
+    private void checkHeard() {
+        if (System.nanoTime() - lastHeard < TimeUnit.SECONDS.toNanos(2 * CallbackQueue.PING_SECONDS)) {
+            return;
+        }
+        System.err.println("Nothing received from the server, registering again");
+        lastHeard = System.nanoTime();
+        try {
+            FiguresBox figuresBox = client.getFiguresBox();
+            figuresBox.unregisterCallback(this); // if the server still has it
+            figuresBox.registerCallback(this);
+            resync();
+        } catch (NoSuchObjectException e) {
+            reconnect();
+        } catch (RemoteException | RuntimeException e) { // a failed check must not stop the next ones
+            System.err.println("Callback not registered again: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Open the board again from the board directory, register again and download the board again
+     */
+    @Override
+    public boolean reconnect() {
+        synchronized (this) {
+            reconnecting = true;
+        }
+        try {
+            client.setFiguresBox(client.openBoard());
+            client.getFiguresBox().registerCallback(this);
+            synchronized (this) {
+                reconnecting = false;
+                reload();
+                resync(); // the changes made since the download started
+            }
+            lost.set(false);
+            return true;
+        } catch (Exception e) {
+            System.err.println("Board not opened again: " + e.getMessage());
+            if (lost.compareAndSet(false, true)) {
+                SwingUtilities.invokeLater(() -> JOptionPane.showMessageDialog(client.frame,
+                        "The board cannot be opened again, your changes are not saved: " + e.getMessage(),
+                        "Board lost", JOptionPane.ERROR_MESSAGE));
             }
+            return false;
         }
-        figure.setSelected(false);
-        if (!exist){
-            
-        System.out.println("Figure added" + figure.getId());
-        client.getCanvas().getFigures().add(figure);
+    }
 
-        client.getCanvas().repaint();
-        
-            
-        }else{
-            client.getCanvas().getFigures().remove(toRemove);
-            client.getCanvas().getFigures().add(figure);
-            client.getCanvas().repaint();
+    private void enqueue(Object changes) {
+        incoming.add(changes);
+        if (scheduled.compareAndSet(false, true)) {
+            SwingUtilities.invokeLater(this::applyAll);
         }
     }
-    
+
+    /**
+     * Apply all the queued changes, on the event dispatch thread
+     */
+    private void applyAll() {
+        scheduled.set(false);
+        Object changes;
+        while ((changes = incoming.poll()) != null) {
+            if (changes instanceof Reload) {
+                reload((Reload) changes);
+            } else if (changes instanceof Ack) {
+                acknowledge((Ack) changes);
+            } else {
+                apply((DeltaBatch) changes);
+            }
+        }
+    }
+
+    /**
+     * Replace the local figures with a snapshot, except the figures that have edits not acknowledged yet
+     */
+    private void reload(Reload reload) {
+        FiguresCanvas canvas = client.getCanvas();
+        List<Figure> edited = new ArrayList<>();
+        for (Integer id : unacked.keySet()) {
+            Figure figure = canvas.getFigures().getFigure(id);
+            if (figure != null) {
+                edited.add(figure);
+            }
+        }
+        canvas.getFigures().clear();
+        for (Figure figure : reload.figures) {
+            if (unacked.containsKey(figure.getId())) {
+                held.put(figure.getId(), Delta.update(figure));
+            } else if (!tombstones.containsKey(figure.getId())) {
+                canvas.getFigures().add(figure);
+            }
+        }
+        canvas.getFigures().addAll(edited);
+        canvas.rebindFigures();
+        client.setRevision(reload.revision);
+        canvas.repaintFigures();
+    }
+
+    private void apply(DeltaBatch batch) {
+        // the recorded changes of a batch older than the local figures are already applied
+        boolean recorded = batch.getSequence() > client.getRevision();
+        changed = false;
+        for (Delta delta : batch.getDeltas()) {
+            if (unacked.containsKey(delta.getId())) { // the local edits win until they are acknowledged
+                if (recorded && delta.getKind() != Delta.Kind.DRAG) {
+                    held.merge(delta.getId(), delta, Delta::merge);
+                }
+            } else if (delta.getKind() == Delta.Kind.DRAG) {
+                drag(delta);
+            } else if (recorded) {
+                apply(delta);
+            }
+        }
+        if (recorded) {
+            client.setRevision(batch.getSequence());
+        }
+        if (changed) { // the sync lag is measured until the changes are painted
+            client.getMetrics().applied(batch.getTime());
+        }
+    }
+
+    private void apply(Delta delta) {
+        if (delta.getKind() == Delta.Kind.REMOVE) {
+            remove(delta.getId());
+        } else {
+            put(delta.getFigure());
+        }
+    }
+
+    /**
+     * Called on the event dispatch thread when the user edits a figure, before the edit is sent
+     *
+     * @param id the id of the edited figure
+     */
+    public void editing(int id) {
+        unacked.merge(id, 1, Integer::sum);
+    }
+
+    /**
+     * Called on the event dispatch thread when the user starts moving or resizing a figure: the
+     * changes of this figure received from the server, remote drags included, are held until
+     * {@link #release(int)} and until the edits of the figure are acknowledged
+     *
+     * @param id the id of the figure
+     */
+    public void hold(int id) {
+        unacked.merge(id, 1, Integer::sum);
+    }
+
+    /**
+     * Called on the event dispatch thread when the user releases a figure held by {@link #hold(int)},
+     * after the edit made if any has been sent
+     *
+     * @param id the id of the figure
+     */
+    public void release(int id) {
+        settle(id, 1, false);
+    }
+
+    @Override
+    public void acknowledged(Delta edit, int count, boolean accepted) {
+        enqueue(new Ack(edit, count, accepted));
+    }
+
+    private void acknowledge(Ack ack) {
+        // if the server rejected an addition, it has no figure with this id
+        settle(ack.edit.getId(), ack.count, !ack.accepted && ack.edit.getKind() == Delta.Kind.ADD);
+    }
+
+    /**
+     * Once all the edits of a figure are acknowledged, apply the last change received from the
+     * server for this figure, or remove the figure if the server sent nothing and has no such figure
+     *
+     * @param count   the number of edits acknowledged
+     * @param missing true if the server has no figure with this id
+     */
+    private void settle(int id, int count, boolean missing) {
+        if (unacked.computeIfPresent(id, (key, left) -> left > count ? left - count : null) != null) {
+            return;
+        }
+        Delta state = held.remove(id);
+        if (state != null) {
+            apply(state);
+        } else if (missing) {
+            remove(id);
+        }
+    }
+
+    /**
+     * Add the figure to the local figures, or update the figure with the same id unless its version
+     * is not older (our own edit coming back, or a change received late)
+     */
+    private void put(Figure figure) {
+        if (tombstones.containsKey(figure.getId())) {
+            return;
+        }
+        FiguresCanvas canvas = client.getCanvas();
+        Figure existing = canvas.getFigures().getFigure(figure.getId());
+        if (existing == null) {
+            canvas.getFigures().add(figure);
+            canvas.repaintFigure(figure);
+            changed = true;
+        } else if (existing.getVersion() < figure.getVersion()) {
+            changed = true;
+            canvas.getAnimator().stop(existing);
+            canvas.repaintFigure(existing);
+            existing.set(figure);
+            canvas.getFigures().reindex(existing);
+            canvas.repaintFigure(existing);
+        }
+    }
+
+    private void remove(int id) {
+        bury(id);
+        FiguresCanvas canvas = client.getCanvas();
+        Figure existing = canvas.getFigures().getFigure(id);
+        if (existing != null) {
+            changed = true;
+            canvas.getAnimator().stop(existing);
+            canvas.repaintFigure(existing);
+            canvas.unselect(existing);
+            canvas.getFigures().remove(existing);
+        }
+    }
+
+    /**
+     * Remember that a figure has been removed, and forget the figures removed long ago. Must be
+     * called on the event dispatch thread.
+     *
+     * @param id the id of the removed figure
+     */
+    public void bury(int id) {
+        long now = System.currentTimeMillis();
+        tombstones.put(id, now);
+        long before = now - TimeUnit.SECONDS.toMillis(FiguresBoxImpl.TOMBSTONE_SECONDS);
+        Iterator<Long> iterator = tombstones.values().iterator();
+        while (iterator.hasNext() && iterator.next() < before) {
+            iterator.remove();
+        }
+    }
+
+    /**
+     * Move the figure being dragged by another user to its new location and size, smoothly until
+     * the next sample is expected
+     */
+    private void drag(Delta delta) {
+        Figure existing = client.getCanvas().getFigures().getFigure(delta.getId());
+        if (existing != null) {
+            changed = true;
+            client.getCanvas().getAnimator().animate(existing, delta.getX(), delta.getY(), delta.getWidth(),
+                    delta.getHeight(), 1000 / DragStreamer.RATE);
+        }
+    }
+
 }
@@ -0,0 +1,185 @@
+package fr.ubs.scribbleOnline;
+
+import java.rmi.NoSuchObjectException;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Bounded outbound queue of a registered callback, drained by a dedicated sender thread.
+ * The server only enqueues batches and returns to its caller, so a slow or dead client
+ * only delays itself. Batches that piled up while the client was busy are merged into
+ * a single call. When the queue is full the oldest pending batch is dropped.
+ * <p>
+ * A client that has received nothing for {@link #PING_SECONDS} is pinged. After
+ * {@link #MAX_FAILURES} consecutive failed calls, whether they threw a remote or a runtime
+ * exception, or as soon as the client object no longer exists, the client is considered dead:
+ * the queue closes itself and tells its owner.
+ */
+public class CallbackQueue implements Runnable {
+
+    /** default number of pending batches per client */
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    /** time without any call after which the client is pinged */
+    static final long PING_SECONDS = 10;
+
+    /** number of consecutive failed calls after which the client is dropped */
+    static final int MAX_FAILURES = 3;
+
+    private static final AtomicInteger LAST_ID = new AtomicInteger();
+
+    private final Callback callback;
+    private final BlockingQueue<DeltaBatch> queue;
+    private final Thread sender;
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final LatencyHistogram calls = new LatencyHistogram();
+    private volatile boolean closed;
+
+    /**
+     * told when the client is dropped
+     */
+    private final Consumer<CallbackQueue> onDead;
+
+    /**
+     * the number of calls that failed since the last successful one (only used by the sender)
+     */
+    private int failures;
+
+    public CallbackQueue(Callback callback, int capacity) {
+        this(callback, capacity, queue -> { });
+    }
+
+    /**
+     * @param onDead told when the client is dropped, on the sender thread
+     */
+    public CallbackQueue(Callback callback, int capacity, Consumer<CallbackQueue> onDead) {
+        this.callback = callback;
+        this.onDead = onDead;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.sender = new Thread(this, "callback-sender-" + LAST_ID.incrementAndGet());
+        this.sender.setDaemon(true);
+    }
+
+    /**
+     * Start the sender thread
+     */
+    public void start() {
+        this.sender.start();
+    }
+
+    /**
+     * Stop the sender thread, pending batches are discarded
+     */
+    public void close() {
+        this.closed = true;
+        this.sender.interrupt();
+    }
+
+    /**
+     * Enqueue a batch for this client, never blocks
+     *
+     * @param batch the changes to be sent
+     */
+    public void offer(DeltaBatch batch) {
+        while (!this.queue.offer(batch)) {
+            if (this.queue.poll() != null) {
+                long count = this.dropped.incrementAndGet();
+                if (count == 1 || count % 1000 == 0) {
+                    ServerLog.warn("%s is falling behind", this);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        List<DeltaBatch> batches = new ArrayList<>();
+        while (!this.closed) {
+            batches.clear();
+            DeltaBatch first;
+            try {
+                first = this.queue.poll(PING_SECONDS, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                if (first == null) {
+                    this.callback.ping();
+                } else {
+                    batches.add(first);
+                    this.queue.drainTo(batches);
+                    long start = System.nanoTime();
+                    this.callback.editAll(batches.size() == 1 ? first : DeltaBatch.merge(batches));
+                    long duration = System.nanoTime() - start;
+                    this.calls.record(duration);
+                    ServerMetrics.SERVER.recordFanOut(duration);
+                    this.sent.incrementAndGet();
+                }
+                this.failures = 0;
+            } catch (RemoteException | RuntimeException e) { // e.g. thrown by a local callback
+                this.failed.incrementAndGet();
+                if (++this.failures >= MAX_FAILURES || e instanceof NoSuchObjectException) {
+                    ServerLog.warn("%s dropped: %s", this, e.getMessage());
+                    close();
+                    this.onDead.accept(this);
+                    return;
+                }
+                ServerLog.warn("%s: %s", this, e.getMessage());
+            }
+        }
+    }
+
+    public Callback getCallback() {
+        return callback;
+    }
+
+    /**
+     * @return the number of batches waiting to be sent
+     */
+    public int getDepth() {
+        return queue.size();
+    }
+
+    /**
+     * @return the number of remote calls successfully made
+     */
+    public long getSent() {
+        return sent.get();
+    }
+
+    /**
+     * @return the number of batches dropped because the queue was full
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * @return the duration of the calls sending changes to the client
+     */
+    public LatencyHistogram getCalls() {
+        return calls;
+    }
+
+    /**
+     * @return the number of remote calls that failed
+     */
+    public long getFailed() {
+        return failed.get();
+    }
+
+    @Override
+    public String toString() {
+        return sender.getName() + " [depth=" + getDepth() + ", sent=" + getSent() + ", dropped=" + getDropped()
+                + ", failed=" + getFailed() + "]";
+    }
+}
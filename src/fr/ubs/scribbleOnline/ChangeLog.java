@@ -0,0 +1,60 @@
+package fr.ubs.scribbleOnline;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The most recent changes of a board, numbered by revision. Each change is given the next
+ * revision, so that a client knowing the revision of its copy of the board can ask for the
+ * changes it missed. Only the last changes are kept (not thread-safe).
+ */
+public class ChangeLog {
+
+    /** default number of changes kept */
+    public static final int DEFAULT_CAPACITY = 10000;
+
+    private final Delta[] changes;
+    private long revision;
+
+    public ChangeLog(int capacity) {
+        this.changes = new Delta[capacity];
+    }
+
+    /**
+     * Record a change
+     *
+     * @param delta the change
+     * @return the revision of the board after this change
+     */
+    public long append(Delta delta) {
+        this.revision++;
+        this.changes[(int) (this.revision % this.changes.length)] = delta;
+        return this.revision;
+    }
+
+    /**
+     * @return the revision of the last change
+     */
+    public long getRevision() {
+        return revision;
+    }
+
+    /**
+     * Give the changes made after the given revision, merged by figure
+     *
+     * @param since the revision known by the client
+     * @return the changes up to the current revision, null if they are no longer available
+     */
+    public DeltaBatch since(long since) {
+        if (since < this.revision - this.changes.length || since > this.revision) {
+            return null;
+        }
+        Map<Integer, Delta> merged = new LinkedHashMap<>();
+        for (long r = since + 1; r <= this.revision; r++) {
+            Delta delta = this.changes[(int) (r % this.changes.length)];
+            merged.merge(delta.getId(), delta, Delta::merge);
+        }
+        return new DeltaBatch(since, this.revision, new ArrayList<>(merged.values()));
+    }
+}
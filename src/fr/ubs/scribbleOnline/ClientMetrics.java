@@ -0,0 +1,195 @@
+package fr.ubs.scribbleOnline;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.swing.SwingUtilities;
+
+/**
+ * The metrics of the client, telling where slowness comes from: the paints of the canvas, the
+ * calls of the board blocking the event dispatch thread, or the time the changes of the other
+ * users take to be shown. They are exposed as an MXBean, and drawn over the canvas when the
+ * {@link #OVERLAY_PROPERTY} system property is true.
+ * <p>
+ * The sync lag is measured from the time the server received the changes to the end of the
+ * first paint after they were applied, so the clocks of the client and the server must be in sync.
+ */
+public class ClientMetrics implements ClientMetricsMXBean {
+
+    /**
+     * the name of the MXBean
+     */
+    public static final String OBJECT_NAME = "fr.ubs.scribbleOnline:type=ClientMetrics";
+
+    /**
+     * system property that enables the debug overlay of the canvas
+     */
+    public static final String OVERLAY_PROPERTY = "scribble.debugOverlay";
+
+    private final LatencyHistogram paints = new LatencyHistogram();
+    private final LatencyHistogram calls = new LatencyHistogram();
+    private final LatencyHistogram blocked = new LatencyHistogram();
+    private final LatencyHistogram lags = new LatencyHistogram();
+    private final AtomicLong drawn = new AtomicLong();
+    private final AtomicLong culled = new AtomicLong();
+    private volatile int lastDrawn;
+    private volatile int lastCulled;
+
+    /**
+     * the time the server received the oldest change applied since the last paint, 0 if none
+     * (only used on the event dispatch thread)
+     */
+    private long appliedTime;
+
+    /**
+     * Register the MXBean
+     */
+    public void register() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(OBJECT_NAME));
+        } catch (JMException e) {
+            System.err.println("Metrics not registered: " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return true if the metrics must be drawn over the canvas
+     */
+    public boolean isOverlayEnabled() {
+        return Boolean.getBoolean(OVERLAY_PROPERTY);
+    }
+
+    /**
+     * Wrap a board so that the duration of its calls is recorded
+     *
+     * @param box the board
+     * @return the board recording its calls
+     */
+    public FiguresBox instrument(FiguresBox box) {
+        return (FiguresBox) Proxy.newProxyInstance(FiguresBox.class.getClassLoader(), new Class<?>[] {FiguresBox.class},
+                (proxy, method, args) -> {
+                    if (method.getDeclaringClass() == Object.class) {
+                        return method.invoke(box, args);
+                    }
+                    long start = System.nanoTime();
+                    try {
+                        return method.invoke(box, args);
+                    } catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    } finally {
+                        long duration = System.nanoTime() - start;
+                        this.calls.record(duration);
+                        if (SwingUtilities.isEventDispatchThread()) {
+                            this.blocked.record(duration);
+                        }
+                    }
+                });
+    }
+
+    /**
+     * Called on the event dispatch thread when changes received from the server have been applied
+     * to the local figures
+     *
+     * @param time the time the server received the changes
+     */
+    public void applied(long time) {
+        if (this.appliedTime == 0 || time < this.appliedTime) {
+            this.appliedTime = time;
+        }
+    }
+
+    /**
+     * Called on the event dispatch thread when the figures have been drawn
+     *
+     * @param drawn  the number of figures drawn
+     * @param culled the number of figures skipped because they were outside the repainted area
+     */
+    public void drawn(int drawn, int culled) {
+        this.lastDrawn = drawn;
+        this.lastCulled = culled;
+        this.drawn.addAndGet(drawn);
+        this.culled.addAndGet(culled);
+    }
+
+    /**
+     * Called on the event dispatch thread at the end of a paint of the canvas
+     *
+     * @param start the value of {@link System#nanoTime()} when the paint started
+     */
+    public void painted(long start) {
+        this.paints.record(System.nanoTime() - start);
+        if (this.appliedTime != 0) {
+            this.lags.record(TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis() - this.appliedTime));
+            this.appliedTime = 0;
+        }
+    }
+
+    /**
+     * @return the lines of the debug overlay
+     */
+    public String[] getOverlay() {
+        return new String[] {
+            String.format("paint %.2f ms, p99 %.2f ms", this.paints.getMean() / 1e6, this.paints.getValueAtPercentile(99) / 1e6),
+            String.format("figures drawn %d, culled %d", this.lastDrawn, this.lastCulled),
+            String.format("EDT blocked %.1f ms in %d calls, max %.2f ms", this.blocked.getMean() * this.blocked.getCount() / 1e6,
+                    this.blocked.getCount(), this.blocked.getMax() / 1e6),
+            String.format("sync lag p50 %.0f ms, p99 %.0f ms", this.lags.getValueAtPercentile(50) / 1e6,
+                    this.lags.getValueAtPercentile(99) / 1e6),
+        };
+    }
+
+    @Override
+    public ServerMetrics.CallStats getPaintTime() {
+        return ServerMetrics.CallStats.of("paint", this.paints);
+    }
+
+    @Override
+    public int getLastFiguresDrawn() {
+        return this.lastDrawn;
+    }
+
+    @Override
+    public int getLastFiguresCulled() {
+        return this.lastCulled;
+    }
+
+    @Override
+    public long getFiguresDrawn() {
+        return this.drawn.get();
+    }
+
+    @Override
+    public long getFiguresCulled() {
+        return this.culled.get();
+    }
+
+    @Override
+    public ServerMetrics.CallStats getBoardCalls() {
+        return ServerMetrics.CallStats.of("boardCalls", this.calls);
+    }
+
+    @Override
+    public ServerMetrics.CallStats getEdtBlocked() {
+        return ServerMetrics.CallStats.of("edtBlocked", this.blocked);
+    }
+
+    @Override
+    public ServerMetrics.CallStats getSyncLag() {
+        return ServerMetrics.CallStats.of("syncLag", this.lags);
+    }
+
+    @Override
+    public void reset() {
+        this.paints.reset();
+        this.calls.reset();
+        this.blocked.reset();
+        this.lags.reset();
+        this.drawn.set(0);
+        this.culled.set(0);
+    }
+}
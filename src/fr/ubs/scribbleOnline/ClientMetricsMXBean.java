@@ -0,0 +1,46 @@
+package fr.ubs.scribbleOnline;
+
+/**
+ * The metrics of the client, registered in the platform MBean server as
+ * {@value ClientMetrics#OBJECT_NAME}. The durations are in milliseconds.
+ */
+public interface ClientMetricsMXBean {
+
+    /**
+     * @return the duration of the paints of the canvas
+     */
+    ServerMetrics.CallStats getPaintTime();
+
+    /**
+     * @return the number of figures drawn, and skipped because they were outside the repainted area,
+     * the last time the figures were drawn
+     */
+    int getLastFiguresDrawn();
+
+    int getLastFiguresCulled();
+
+    long getFiguresDrawn();
+
+    long getFiguresCulled();
+
+    /**
+     * @return the duration of the calls of the board
+     */
+    ServerMetrics.CallStats getBoardCalls();
+
+    /**
+     * @return the duration of the calls of the board made on the event dispatch thread, during
+     * which the user interface is frozen
+     */
+    ServerMetrics.CallStats getEdtBlocked();
+
+    /**
+     * @return the time from the reception of the changes by the server to their repaint
+     */
+    ServerMetrics.CallStats getSyncLag();
+
+    /**
+     * Forget the recorded durations and counts
+     */
+    void reset();
+}
@@ -0,0 +1,95 @@
+package fr.ubs.scribbleOnline;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.rmi.server.RMISocketFactory;
+
+/**
+ * The socket factory of the RMI connections of the server, counting the bytes received and sent
+ * in the {@link ServerMetrics}: the calls of the clients and the other servers, and the calls of
+ * the callbacks of the clients. Installed with {@link RMISocketFactory#setSocketFactory}.
+ */
+class CountingSocketFactory extends RMISocketFactory {
+
+    private final ServerMetrics metrics;
+
+    CountingSocketFactory(ServerMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    @Override
+    public Socket createSocket(String host, int port) throws IOException {
+        Socket socket = new CountingSocket();
+        socket.connect(new InetSocketAddress(host, port));
+        return socket;
+    }
+
+    @Override
+    public ServerSocket createServerSocket(int port) throws IOException {
+        return new ServerSocket(port) {
+            @Override
+            public Socket accept() throws IOException {
+                Socket socket = new CountingSocket();
+                implAccept(socket);
+                return socket;
+            }
+        };
+    }
+
+    private class CountingSocket extends Socket {
+        private InputStream input;
+        private OutputStream output;
+
+        @Override
+        public synchronized InputStream getInputStream() throws IOException {
+            if (this.input == null) {
+                this.input = new FilterInputStream(super.getInputStream()) {
+                    @Override
+                    public int read() throws IOException {
+                        int b = super.read();
+                        if (b >= 0) {
+                            metrics.addBytesReceived(1);
+                        }
+                        return b;
+                    }
+
+                    @Override
+                    public int read(byte[] bytes, int offset, int length) throws IOException {
+                        int count = super.read(bytes, offset, length);
+                        if (count > 0) {
+                            metrics.addBytesReceived(count);
+                        }
+                        return count;
+                    }
+                };
+            }
+            return this.input;
+        }
+
+        @Override
+        public synchronized OutputStream getOutputStream() throws IOException {
+            if (this.output == null) {
+                this.output = new FilterOutputStream(super.getOutputStream()) {
+                    @Override
+                    public void write(int b) throws IOException {
+                        this.out.write(b);
+                        metrics.addBytesSent(1);
+                    }
+
+                    @Override
+                    public void write(byte[] bytes, int offset, int length) throws IOException {
+                        this.out.write(bytes, offset, length);
+                        metrics.addBytesSent(length);
+                    }
+                };
+            }
+            return this.output;
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package fr.ubs.scribbleOnline;
+
+import java.io.Serializable;
+
+import fr.ubs.scribble.Figure;
+
+/**
+ * A single change of the board sent to the clients: a figure added, updated or removed, or
+ * the intermediate location and size of a figure that is being dragged (not recorded)
+ */
+public class Delta implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * the kind of change
+     */
+    public enum Kind {
+        ADD, UPDATE, REMOVE, DRAG
+    }
+
+    private final Kind kind;
+    private final int id;
+    private final Figure figure;
+    private double x, y, width, height;
+
+    private Delta(Kind kind, int id, Figure figure) {
+        this.kind = kind;
+        this.id = id;
+        this.figure = figure;
+    }
+
+    public static Delta add(Figure figure) {
+        return new Delta(Kind.ADD, figure.getId(), figure);
+    }
+
+    public static Delta update(Figure figure) {
+        return new Delta(Kind.UPDATE, figure.getId(), figure);
+    }
+
+    public static Delta remove(int id) {
+        return new Delta(Kind.REMOVE, id, null);
+    }
+
+    public static Delta drag(int id, double x, double y, double width, double height) {
+        Delta delta = new Delta(Kind.DRAG, id, null);
+        delta.x = x;
+        delta.y = y;
+        delta.width = width;
+        delta.height = height;
+        return delta;
+    }
+
+    /**
+     * Merge this change with a later change of the same figure
+     *
+     * @param next the later change
+     * @return a single change equivalent to this change followed by the next one
+     */
+    public Delta merge(Delta next) {
+        if (this.kind == Kind.ADD && next.kind == Kind.UPDATE) {
+            return add(next.figure);
+        }
+        if (next.kind == Kind.DRAG && this.kind != Kind.DRAG) { // a recorded change wins over a drag
+            return this;
+        }
+        return next;
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * @return the figure added or updated, null for a removal or a drag
+     */
+    public Figure getFigure() {
+        return figure;
+    }
+
+    public double getX() {
+        return x;
+    }
+
+    public double getY() {
+        return y;
+    }
+
+    public double getWidth() {
+        return width;
+    }
+
+    public double getHeight() {
+        return height;
+    }
+
+    @Override
+    public String toString() {
+        return kind + " " + id;
+    }
+}
@@ -0,0 +1,101 @@
+package fr.ubs.scribbleOnline;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A batch of changes sent to a client in a single remote call, at most one change per figure.
+ * The batch brings a copy of the board from the revision {@link #getPrevious()} to the revision
+ * {@link #getSequence()}: a client whose copy is older than the previous revision missed some
+ * changes and must resynchronize.
+ * <p>
+ * The batch also carries the time the server received its oldest change, so a client can measure
+ * how long changes take to reach it (its clock must be in sync with the clock of the server).
+ */
+public class DeltaBatch implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final long previous;
+    private final long sequence;
+    private final List<Delta> deltas;
+    private final long time;
+
+    /**
+     * Constructor of a batch of changes received now
+     *
+     * @param previous the revision of the board the changes apply to
+     * @param sequence the revision of the board after the changes
+     * @param deltas   the changes, in the order they must be applied
+     */
+    public DeltaBatch(long previous, long sequence, List<Delta> deltas) {
+        this(previous, sequence, deltas, System.currentTimeMillis());
+    }
+
+    /**
+     * Constructor
+     *
+     * @param previous the revision of the board the changes apply to
+     * @param sequence the revision of the board after the changes
+     * @param deltas   the changes, in the order they must be applied
+     * @param time     the time the server received the oldest change, in milliseconds
+     */
+    public DeltaBatch(long previous, long sequence, List<Delta> deltas, long time) {
+        this.previous = previous;
+        this.sequence = sequence;
+        this.deltas = deltas;
+        this.time = time;
+    }
+
+    /**
+     * Merge consecutive batches into one, keeping a single change per figure
+     *
+     * @param batches the batches, in sequence order
+     * @return the merged batch, from the previous revision of the first batch to the sequence of the last one
+     */
+    public static DeltaBatch merge(Collection<DeltaBatch> batches) {
+        Map<Integer, Delta> merged = new LinkedHashMap<>();
+        long previous = -1;
+        long sequence = 0;
+        long time = Long.MAX_VALUE;
+        for (DeltaBatch batch : batches) {
+            time = Math.min(time, batch.time);
+            if (previous < 0) {
+                previous = batch.previous;
+            }
+            for (Delta delta : batch.deltas) {
+                merged.merge(delta.getId(), delta, Delta::merge);
+            }
+            sequence = batch.sequence;
+        }
+        return new DeltaBatch(previous, sequence, new ArrayList<>(merged.values()), time);
+    }
+
+    public long getPrevious() {
+        return previous;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    public List<Delta> getDeltas() {
+        return deltas;
+    }
+
+    /**
+     * @return the time the server received the oldest change of the batch, in milliseconds since the epoch
+     */
+    public long getTime() {
+        return time;
+    }
+
+    @Override
+    public String toString() {
+        return "batch " + previous + ".." + sequence + " " + deltas;
+    }
+}
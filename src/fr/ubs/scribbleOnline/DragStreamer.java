@@ -0,0 +1,111 @@
+package fr.ubs.scribbleOnline;
+
+import java.rmi.RemoteException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import fr.ubs.scribble.Figure;
+
+/**
+ * Sends the intermediate location and size of the figure being dragged to the server, at most
+ * {@link #RATE} times per second whatever the rate of the mouse events. Only the latest sample
+ * is kept: the samples taken between two sends are dropped.
+ * <p>
+ * No method waits for the network, so they can be called on the event dispatch thread. The
+ * samples of a drag are tagged with its generation, bumped when the drag ends, and the samples of
+ * an ended drag are not sent. A sample may still be being sent when the drag ends: the final
+ * state of the figure must then be submitted with {@link #execute(Runnable)}, so that it follows
+ * that sample.
+ */
+public class DragStreamer {
+
+    /**
+     * maximum number of samples sent per second
+     */
+    public static final int RATE = 30;
+
+    /**
+     * A location and size of a figure
+     */
+    private static class Sample {
+        final int generation;
+        final int id;
+        final double x, y, width, height;
+
+        Sample(Figure figure, int generation) {
+            this.generation = generation;
+            this.id = figure.getId();
+            this.x = figure.getX();
+            this.y = figure.getY();
+            this.width = figure.getWidth();
+            this.height = figure.getHeight();
+        }
+    }
+
+    private volatile FiguresBox figuresBox;
+    private final AtomicReference<Sample> latest = new AtomicReference<>();
+
+    /**
+     * the generation of the current drag
+     */
+    private final AtomicInteger generation = new AtomicInteger();
+    private final ScheduledExecutorService sender = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "drag-streamer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public DragStreamer(FiguresBox figuresBox) {
+        this.figuresBox = figuresBox;
+        this.sender.scheduleAtFixedRate(this::send, 0, 1000 / RATE, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Send the next samples to another server, when the board has moved
+     */
+    public void setFiguresBox(FiguresBox figuresBox) {
+        this.figuresBox = figuresBox;
+    }
+
+    /**
+     * Replace the sample waiting to be sent with the current state of the figure
+     *
+     * @param figure the figure being dragged
+     */
+    public void offer(Figure figure) {
+        this.latest.set(new Sample(figure, this.generation.get()));
+    }
+
+    /**
+     * End the current drag: the sample waiting to be sent and the samples offered before are dropped
+     */
+    public void cancel() {
+        this.generation.incrementAndGet();
+        this.latest.set(null);
+    }
+
+    /**
+     * Run a task on the sender thread, once the sample being sent if any has been sent
+     *
+     * @param task the task, e.g. submitting the final state of a figure
+     * @return the completion of the task
+     */
+    public Future<?> execute(Runnable task) {
+        return this.sender.submit(task);
+    }
+
+    private void send() {
+        Sample sample = this.latest.getAndSet(null);
+        if (sample != null && sample.generation == this.generation.get()) {
+            try {
+                this.figuresBox.dragFigure(sample.id, sample.x, sample.y, sample.width, sample.height);
+            } catch (RemoteException e) {
+                System.err.println("Drag not sent: " + e.getMessage());
+            }
+        }
+    }
+}
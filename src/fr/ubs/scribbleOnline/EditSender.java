@@ -0,0 +1,200 @@
+package fr.ubs.scribbleOnline;
+
+import java.rmi.ConnectException;
+import java.rmi.ConnectIOException;
+import java.rmi.NoSuchObjectException;
+import java.rmi.RemoteException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Sends the edits made by the user to the server from a background thread, so the event dispatch
+ * thread never waits for the network. The edits of a figure that are waiting to be sent are
+ * merged. Each edit is acknowledged once the server has accepted or rejected it. An edit that
+ * cannot reach the server (connection refused or lost) is sent again until it succeeds. When the
+ * board is not exported anymore (server restarted, board unloaded), the listener opens it again
+ * before the edit is sent again, and the edit is rejected if the board cannot be opened. Any other
+ * failure is acknowledged as a rejection, so that one bad edit cannot hold the following ones.
+ */
+public class EditSender implements Runnable {
+
+    /**
+     * maximum time between two attempts to send an edit
+     */
+    static final long MAX_RETRY_MILLIS = 5000;
+
+    /**
+     * Told when the server has accepted or rejected an edit
+     */
+    public interface Listener {
+        /**
+         * Called on the sender thread
+         *
+         * @param edit     the edit sent, merging several edits of the same figure
+         * @param count    the number of edits merged into this one
+         * @param accepted false if the server rejected it
+         */
+        void acknowledged(Delta edit, int count, boolean accepted);
+
+        /**
+         * Called on the sender thread when the board is not exported anymore: open the board
+         * again and register again, then the edit is sent to the board opened
+         *
+         * @return false if the board cannot be opened again
+         */
+        boolean reconnect();
+    }
+
+    private volatile FiguresBox figuresBox;
+    private volatile Listener listener;
+
+    /**
+     * the edits waiting to be sent, by figure id, with the number of edits merged into each one
+     * (guarded by pending)
+     */
+    private final Map<Integer, Delta> pending = new LinkedHashMap<>();
+    private final Map<Integer, Integer> counts = new LinkedHashMap<>();
+    private final Thread sender;
+    private volatile boolean closed;
+
+    /**
+     * true while an edit is being sent (guarded by pending)
+     */
+    private boolean sending;
+
+    public EditSender(FiguresBox figuresBox) {
+        this.figuresBox = figuresBox;
+        this.sender = new Thread(this, "edit-sender");
+        this.sender.setDaemon(true);
+        this.sender.start();
+    }
+
+    public void setFiguresBox(FiguresBox figuresBox) {
+        this.figuresBox = figuresBox;
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Queue an edit to be sent, never blocks. The figure of the edit must not be modified afterwards.
+     *
+     * @param edit an addition, update or removal
+     */
+    public void submit(Delta edit) {
+        synchronized (this.pending) {
+            this.pending.merge(edit.getId(), edit, Delta::merge);
+            this.counts.merge(edit.getId(), 1, Integer::sum);
+            this.pending.notifyAll();
+        }
+    }
+
+    /**
+     * Stop sending, the edits not sent yet are lost
+     */
+    public void close() {
+        this.closed = true;
+        this.sender.interrupt();
+    }
+
+    @Override
+    public void run() {
+        while (!this.closed) {
+            Delta edit;
+            int count;
+            synchronized (this.pending) {
+                while (this.pending.isEmpty()) {
+                    try {
+                        this.pending.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                Iterator<Delta> first = this.pending.values().iterator();
+                edit = first.next();
+                first.remove();
+                count = this.counts.remove(edit.getId());
+                this.sending = true;
+            }
+            boolean accepted;
+            try {
+                accepted = send(edit);
+            } catch (InterruptedException e) {
+                return;
+            } catch (RemoteException | RuntimeException e) {
+                System.err.println("Edit rejected: " + e.getMessage());
+                accepted = false;
+            }
+            Listener listener = this.listener;
+            if (listener != null) {
+                listener.acknowledged(edit, count, accepted);
+            }
+            synchronized (this.pending) {
+                this.sending = false;
+                this.pending.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Wait for the queued edits to be sent
+     *
+     * @param millis the maximum time to wait
+     * @return false if some edits are still not sent
+     */
+    public boolean awaitSent(long millis) {
+        long end = System.currentTimeMillis() + millis;
+        synchronized (this.pending) {
+            while (!this.pending.isEmpty() || this.sending) {
+                long left = end - System.currentTimeMillis();
+                if (left <= 0) {
+                    return false;
+                }
+                try {
+                    this.pending.wait(left);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Send an edit, again and again until it reaches the server
+     *
+     * @return true if the server accepted it
+     * @throws RemoteException if the edit reached the server but failed there, or if the board
+     *                         is not exported anymore and cannot be opened again
+     */
+    private boolean send(Delta edit) throws RemoteException, InterruptedException {
+        long delay = 100;
+        while (true) {
+            FiguresBox figuresBox = this.figuresBox;
+            try {
+                switch (edit.getKind()) {
+                    case ADD:
+                        return figuresBox.addFigure(edit.getFigure());
+                    case UPDATE:
+                        return figuresBox.updateFigure(edit.getFigure());
+                    default:
+                        return figuresBox.removeFigure(edit.getId()) != null;
+                }
+            } catch (NoSuchObjectException e) {
+                if (this.figuresBox == figuresBox) { // else already opened again
+                    Listener listener = this.listener;
+                    if (listener == null || !listener.reconnect()) {
+                        throw e;
+                    }
+                }
+            } catch (ConnectException | ConnectIOException e) {
+                System.err.println("Edit not sent, trying again in " + delay + " ms: " + e.getMessage());
+                Thread.sleep(delay);
+                delay = Math.min(2 * delay, MAX_RETRY_MILLIS);
+            }
+        }
+    }
+}
@@ -0,0 +1,312 @@
+package fr.ubs.scribbleOnline;
+
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import fr.ubs.scribble.Figure;
+import fr.ubs.scribble.FigureTable;
+import fr.ubs.scribble.Figures;
+
+/**
+ * Server-side storage of the figures of a board, indexed by figure id. The iteration order
+ * of the index is the drawing order: a figure keeps its place when it is updated, and new
+ * figures are drawn on top. Safe for concurrent use by the RMI threads.
+ * <p>
+ * The store may be based on a {@link MappedSnapshot}: the figures of the snapshot are read from
+ * the mapped file when they are needed, and only the changes made since are kept in memory.
+ * <p>
+ * The figures kept in memory are stored in {@link FigureTable}s, as primitives rather than
+ * objects: the figures given by the store are new objects, changing them does not change the store.
+ * <p>
+ * The ids of the removed figures are kept for a while (tombstones), so that a late or reordered
+ * message cannot add a removed figure again.
+ */
+public class FigureStore {
+
+    /**
+     * the figures that are not in the base snapshot
+     */
+    private final FigureTable figures = new FigureTable();
+
+    /**
+     * the new state of the base snapshot figures that have been updated
+     */
+    private final FigureTable replaced = new FigureTable();
+
+    /**
+     * the record numbers of the base snapshot figures that have been removed
+     */
+    private final BitSet removedRecords = new BitSet();
+
+    /**
+     * the snapshot the store is based on (may be null)
+     */
+    private MappedSnapshot base;
+
+    private int removed;
+
+    /**
+     * the removal time of the recently removed figures, by id, oldest first
+     */
+    private final Map<Integer, Long> tombstones = new LinkedHashMap<>();
+
+    /**
+     * the first id that has never been given to a figure nor leased
+     */
+    private int nextId = 1;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * Base the store on a snapshot. Must be called while the store is still empty. The figures
+     * whose shape class cannot be loaded are left out, as if they had been removed.
+     *
+     * @param base the snapshot
+     */
+    public void setBase(MappedSnapshot base) {
+        lock.writeLock().lock();
+        try {
+            this.base = base;
+            this.nextId = Math.max(this.nextId, base.getNextId());
+            if (base.hasUnknownShapes()) {
+                for (int i = 0; i < base.size(); i++) {
+                    if (!base.isReadable(i)) {
+                        removedRecords.set(i);
+                        removed++;
+                    }
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return the record number of a base snapshot figure that has not been removed, -1 if none
+     */
+    private int baseIndexOf(int id) {
+        if (base == null) {
+            return -1;
+        }
+        int index = base.indexOf(id);
+        return index >= 0 && removedRecords.get(index) ? -1 : index;
+    }
+
+    /**
+     * Add a new figure on top of the others
+     *
+     * @param figure the figure to be added
+     * @return false if a figure with the same id already exists
+     */
+    public boolean add(Figure figure) {
+        lock.writeLock().lock();
+        try {
+            if (tombstones.containsKey(figure.getId()) || baseIndexOf(figure.getId()) >= 0
+                    || !figures.add(figure)) {
+                return false;
+            }
+            // an id that was not leased must not be leased later
+            nextId = Math.max(nextId, figure.getId() + 1);
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Replace the figure that has the same id, keeping its drawing order
+     *
+     * @param figure the new state of the figure
+     * @return false if no figure has this id
+     */
+    public boolean update(Figure figure) {
+        lock.writeLock().lock();
+        try {
+            if (figures.set(figure)) {
+                return true;
+            }
+            if (baseIndexOf(figure.getId()) >= 0) {
+                if (!replaced.set(figure)) {
+                    replaced.add(figure);
+                }
+                return true;
+            }
+            return false;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Remove the figure with the given id
+     *
+     * @param id the figure id
+     * @return the removed figure, null if no figure has this id
+     */
+    public Figure remove(int id) {
+        lock.writeLock().lock();
+        try {
+            Figure figure = figures.remove(id);
+            if (figure == null) {
+                figure = getBase(id);
+                if (figure != null) {
+                    removedRecords.set(base.indexOf(id));
+                    replaced.remove(id);
+                    removed++;
+                }
+            }
+            if (figure != null) {
+                tombstones.put(id, System.currentTimeMillis());
+            }
+            return figure;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Lease a block of ids that have never been given to a figure
+     *
+     * @param count the number of ids
+     * @return the first id of the block
+     */
+    public int lease(int count) {
+        lock.writeLock().lock();
+        try {
+            int first = nextId;
+            nextId += count;
+            return first;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return the first id that has never been given to a figure nor leased
+     */
+    public int getNextId() {
+        lock.readLock().lock();
+        try {
+            return nextId;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Make sure the ids lower than the given one are never leased, e.g. when they were leased
+     * before a restart
+     *
+     * @param id an id
+     */
+    public void reserveIds(int id) {
+        lock.writeLock().lock();
+        try {
+            nextId = Math.max(nextId, id);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Forget the figures removed before the given time: a figure with the same id may be added again
+     *
+     * @param before a time, in milliseconds
+     * @return the number of tombstones dropped
+     */
+    public int compact(long before) {
+        lock.writeLock().lock();
+        try {
+            int count = 0;
+            Iterator<Long> iterator = tombstones.values().iterator();
+            while (iterator.hasNext() && iterator.next() < before) {
+                iterator.remove();
+                count++;
+            }
+            return count;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @param id the figure id
+     * @return the figure with the given id, null if none
+     */
+    public Figure get(int id) {
+        lock.readLock().lock();
+        try {
+            Figure figure = figures.get(id);
+            return figure != null ? figure : getBase(id);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return the current state of a base snapshot figure, null if none
+     */
+    private Figure getBase(int id) {
+        int index = baseIndexOf(id);
+        if (index < 0) {
+            return null;
+        }
+        Figure figure = replaced.get(id);
+        return figure != null ? figure : base.getFigure(index);
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return (base == null ? 0 : base.size()) - removed + figures.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return a copy of the figures in drawing order, without removed rows
+     */
+    public FigureTable toTable() {
+        lock.readLock().lock();
+        try {
+            FigureTable copy = new FigureTable((base == null ? 0 : base.size()) - removed + figures.size());
+            if (base != null) {
+                for (int i = 0; i < base.size(); i++) {
+                    if (!removedRecords.get(i)) {
+                        int row = replaced.indexOf(base.getId(i));
+                        if (row >= 0) {
+                            copy.add(replaced, row);
+                        } else {
+                            base.addTo(copy, i);
+                        }
+                    }
+                }
+            }
+            for (int row = 0; row < figures.getRowCount(); row++) {
+                if (!figures.isRemoved(row)) {
+                    copy.add(figures, row);
+                }
+            }
+            return copy;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return a copy of the figures in drawing order
+     */
+    public Figures toFigures() {
+        FigureTable table = toTable();
+        Figures copy = new Figures();
+        for (int row = 0; row < table.getRowCount(); row++) {
+            copy.add(table.getFigure(row));
+        }
+        return copy;
+    }
+}
@@ -8,9 +8,59 @@ import fr.ubs.scribble.Figures;
 
 public interface FiguresBox extends Remote{
     
-    void addFigure(Figure figure) throws java.rmi.RemoteException;
-    Figure removeFigure(Figure figure) throws java.rmi.RemoteException;
+    /**
+     * Add a figure and notify the clients
+     *
+     * @return false if the figure was rejected: its id is used, or was used by a removed figure
+     */
+    boolean addFigure(Figure figure) throws java.rmi.RemoteException;
+    /**
+     * Remove the figure with the given id and notify the clients
+     *
+     * @return the removed figure, null if no figure has this id
+     */
+    Figure removeFigure(int id) throws java.rmi.RemoteException;
     Figures getFigures() throws java.rmi.RemoteException;
-    void updateFigure(Figure figure) throws java.rmi.RemoteException;
+    /**
+     * Replace the figure that has the same id and notify the clients, if the version of the
+     * figure is newer than the version of the figure replaced (see {@link Figure#getVersion()})
+     *
+     * @return false if the update was rejected: no figure has this id, or the version is not newer
+     */
+    boolean updateFigure(Figure figure) throws java.rmi.RemoteException;
     void registerCallback(Callback callback) throws java.rmi.RemoteException;
+
+    /**
+     * Stop notifying a client, e.g. when it quits
+     */
+    void unregisterCallback(Callback callback) throws java.rmi.RemoteException;
+
+    /**
+     * Show the intermediate location and size of a figure that is being moved or resized to the
+     * other clients. Not recorded: the final state is sent with updateFigure.
+     */
+    void dragFigure(int id, double x, double y, double width, double height) throws java.rmi.RemoteException;
+
+    /**
+     * Give a page of the figures as they were at a given revision. The first page is requested with
+     * a negative revision, the following ones with the revision of the first page.
+     *
+     * @return the page, null if the snapshot of this revision is no longer available
+     */
+    SnapshotPage getSnapshot(long revision, int offset, int limit) throws java.rmi.RemoteException;
+
+    /**
+     * Give the changes made after the given revision
+     *
+     * @return the changes, null if they are no longer available and a snapshot must be downloaded
+     */
+    DeltaBatch getChangesSince(long revision) throws java.rmi.RemoteException;
+
+    /**
+     * Lease a block of figure ids that are given to no other client
+     *
+     * @param count the number of ids, at most {@link FiguresBoxImpl#MAX_LEASE}
+     * @return the first id of the block
+     */
+    int leaseIds(int count) throws java.rmi.RemoteException;
 }
@@ -1,74 +1,431 @@
 package fr.ubs.scribbleOnline;
 
+import java.io.IOException;
 import java.rmi.RemoteException;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 import fr.ubs.scribble.Figure;
+import fr.ubs.scribble.FigureTable;
 import fr.ubs.scribble.Figures;
 
+/**
+ * A board: its figures, the clients registered to its changes, and the recent changes. The
+ * duration of each call is recorded in the {@link ServerMetrics} of the server.
+ */
 public class FiguresBoxImpl implements FiguresBox {
-    Figures figures;
-    List<Callback> callbacks;
+    /**
+     * time during which edits are collected before being sent, edits of the same figure are merged
+     */
+    static final long COALESCE_MILLIS = 5;
+
+    /**
+     * number of snapshots kept for the clients that are downloading them page by page
+     */
+    static final int SNAPSHOTS = 4;
+
+    /**
+     * period of the snapshots of a persistent board, taken only if the board changed
+     */
+    static final long CHECKPOINT_SECONDS = 60;
+
+    /**
+     * time during which the id of a removed figure cannot be added again
+     */
+    static final long TOMBSTONE_SECONDS = 600;
+
+    /**
+     * maximum number of ids leased at once
+     */
+    static final int MAX_LEASE = 1 << 16;
+
+    FigureStore figures = new FigureStore();
+    List<CallbackQueue> callbacks = new CopyOnWriteArrayList<CallbackQueue>();
+
+    /**
+     * changes waiting for the end of the coalescing window, by figure id (guarded by itself)
+     */
+    private final Map<Integer, Delta> pending = new LinkedHashMap<>();
+    private boolean flushScheduled;
+
+    /**
+     * the time the first change of the coalescing window was received (guarded by pending)
+     */
+    private long windowStart;
+    private long flushedRevision;
+    private final ChangeLog changes = new ChangeLog(ChangeLog.DEFAULT_CAPACITY);
+
+    /**
+     * the last snapshots taken, by revision (guarded by pending)
+     */
+    private final Map<Long, FigureTable> snapshots = new LinkedHashMap<>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, FigureTable> eldest) {
+            return size() > SNAPSHOTS;
+        }
+    };
+
+    /**
+     * runs the flushes and the periodic tasks of the board, may be shared with other boards
+     */
+    private final ScheduledExecutorService flusher;
+
+    /**
+     * the periodic tasks of the board, cancelled when it is closed
+     */
+    private final List<ScheduledFuture<?>> tasks = new CopyOnWriteArrayList<>();
+
+    /**
+     * the last time the board was used
+     */
+    private volatile long lastAccess = System.currentTimeMillis();
+
+    /**
+     * true once the board has been unloaded
+     */
+    private volatile boolean closed;
+
+    /**
+     * the persistent storage of the board, null if the board is only kept in memory
+     */
+    private final FiguresJournal journal;
     @Override
-    public void addFigure(Figure figure) {
-        boolean exist = false;
-        for (Figure f : this.figures) {
-            if (f.getId()==(figure.getId())) {
-                exist = true;
+    public boolean addFigure(Figure figure) {
+        long start = System.nanoTime();
+        try {
+            // the store and the coalescing window are updated together, so that concurrent edits of
+            // a figure are published in the order they are stored
+            synchronized (this.pending) {
+                if (!this.figures.add(figure)) {
+                    return false;
+                }
+                ServerLog.debug("Figure added : %s", figure);
+                publish(Delta.add(figure));
+                return true;
             }
+        } finally {
+            ServerMetrics.SERVER.record(ServerMetrics.Call.ADD_FIGURE, start);
         }
-        if (!exist){
-        this.figures.add(figure);
-        System.out.println("Figure added : " + figure.toString());
-        this.callbacks.forEach(c -> {
-            try {
-                c.edit(figure);
-            } catch (RemoteException e) {
-                // TODO Auto-generated catch block
-                e.printStackTrace();
-            }
-        });}
     }
 
     @Override
-    public Figure removeFigure(Figure figure) {
-        this.figures.remove(figure);
-        
-        return figure;
+    public Figure removeFigure(int id) {
+        long start = System.nanoTime();
+        try {
+            synchronized (this.pending) {
+                Figure figure = this.figures.remove(id);
+                if (figure != null) {
+                    publish(Delta.remove(id));
+                }
+                return figure;
+            }
+        } finally {
+            ServerMetrics.SERVER.record(ServerMetrics.Call.REMOVE_FIGURE, start);
+        }
     }
 
     public FiguresBoxImpl() {
-        this.figures = new Figures();
-        this.callbacks = new ArrayList<Callback>();
+        this(newFlusher());
+    }
+
+    /**
+     * Constructor of a board only kept in memory
+     *
+     * @param flusher runs the flushes and the periodic tasks of the board
+     */
+    public FiguresBoxImpl(ScheduledExecutorService flusher) {
+        this.flusher = flusher;
+        this.journal = null;
+        scheduleCompaction();
+    }
+
+    /**
+     * Constructor of a persistent board: the figures are loaded from the journal, and every
+     * change is written to the journal
+     *
+     * @param journal the persistent storage of the board
+     */
+    public FiguresBoxImpl(FiguresJournal journal) throws IOException {
+        this(journal, newFlusher());
+    }
+
+    /**
+     * Constructor of a persistent board
+     *
+     * @param journal the persistent storage of the board
+     * @param flusher runs the flushes and the periodic tasks of the board
+     */
+    public FiguresBoxImpl(FiguresJournal journal, ScheduledExecutorService flusher) throws IOException {
+        this.flusher = flusher;
+        this.journal = journal;
+        scheduleCompaction();
+        journal.load(this.figures);
+        journal.start();
+        this.tasks.add(this.flusher.scheduleWithFixedDelay(this::checkpoint, CHECKPOINT_SECONDS, CHECKPOINT_SECONDS, TimeUnit.SECONDS));
+    }
+
+    static ScheduledExecutorService newFlusher() {
+        return Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "figures-flusher");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Forget the old tombstones regularly
+     */
+    private void scheduleCompaction() {
+        this.tasks.add(this.flusher.scheduleWithFixedDelay(
+                () -> this.figures.compact(System.currentTimeMillis() - TimeUnit.SECONDS.toMillis(TOMBSTONE_SECONDS)),
+                TOMBSTONE_SECONDS, TOMBSTONE_SECONDS / 10, TimeUnit.SECONDS));
+    }
+
+    /**
+     * Queue a snapshot of the board if it changed since the last one
+     */
+    void checkpoint() {
+        synchronized (this.pending) {
+            if (this.journal.getRecords() > 0) {
+                this.journal.snapshot(this.figures.toTable(), this.figures.getNextId());
+            }
+        }
+    }
+
+    /**
+     * Stop the periodic tasks and the callback senders, and write the pending changes of a
+     * persistent board
+     */
+    public void close() {
+        this.closed = true;
+        this.tasks.forEach(task -> task.cancel(false));
+        this.callbacks.forEach(CallbackQueue::close);
+        if (this.journal != null) {
+            this.journal.close();
+        }
+    }
+
+    /**
+     * @return true once the board has been unloaded: it must be opened again from the directory
+     */
+    public boolean isClosed() {
+        return this.closed;
+    }
+
+    /**
+     * @return true if the board is saved in a journal
+     */
+    public boolean isPersistent() {
+        return this.journal != null;
+    }
+
+    /**
+     * @return the last time the board was opened, read or changed, in milliseconds
+     */
+    public long getLastAccess() {
+        return this.lastAccess;
+    }
+
+    /**
+     * Record an access to the board, which is then not unloaded for a while
+     */
+    void touch() {
+        this.lastAccess = System.currentTimeMillis();
+    }
+
+    /**
+     * @return the number of figures of the board
+     */
+    public int getFigureCount() {
+        return this.figures.size();
     }
 
     @Override
     public Figures getFigures() throws RemoteException {
-        return this.figures;
+        long start = System.nanoTime();
+        try {
+            return this.figures.toFigures();
+        } finally {
+            ServerMetrics.SERVER.record(ServerMetrics.Call.GET_FIGURES, start);
+        }
+    }
+
+    @Override
+    public SnapshotPage getSnapshot(long revision, int offset, int limit) throws RemoteException {
+        long start = System.nanoTime();
+        try {
+            FigureTable snapshot;
+            this.lastAccess = System.currentTimeMillis();
+            synchronized (this.pending) {
+                if (revision < 0) {
+                    revision = this.changes.getRevision();
+                    snapshot = this.snapshots.get(revision);
+                    if (snapshot == null) {
+                        snapshot = this.figures.toTable();
+                        this.snapshots.put(revision, snapshot);
+                    }
+                } else {
+                    snapshot = this.snapshots.get(revision);
+                    if (snapshot == null) {
+                        return null;
+                    }
+                }
+            }
+            int from = Math.min(Math.max(offset, 0), snapshot.size());
+            int to = Math.min(from + limit, snapshot.size());
+            List<Figure> page = new ArrayList<>(to - from);
+            for (int row = from; row < to; row++) {
+                page.add(snapshot.getFigure(row));
+            }
+            return new SnapshotPage(revision, from, snapshot.size(), page);
+        } finally {
+            ServerMetrics.SERVER.record(ServerMetrics.Call.GET_SNAPSHOT, start);
+        }
+    }
+
+    @Override
+    public DeltaBatch getChangesSince(long revision) throws RemoteException {
+        long start = System.nanoTime();
+        try {
+            synchronized (this.pending) {
+                return this.changes.since(revision);
+            }
+        } finally {
+            ServerMetrics.SERVER.record(ServerMetrics.Call.GET_CHANGES_SINCE, start);
+        }
+    }
+
+    @Override
+    public int leaseIds(int count) throws RemoteException {
+        long start = System.nanoTime();
+        try {
+            if (count < 1 || count > MAX_LEASE) {
+                throw new IllegalArgumentException("Cannot lease " + count + " ids");
+            }
+            synchronized (this.pending) {
+                int first = this.figures.lease(count);
+                if (this.journal != null) {
+                    this.journal.lease(this.figures.getNextId());
+                }
+                return first;
+            }
+        } finally {
+            ServerMetrics.SERVER.record(ServerMetrics.Call.LEASE_IDS, start);
+        }
     }
 
     @Override
     public void registerCallback(Callback callback) throws RemoteException {
-        this.callbacks.add(callback);
+        long start = System.nanoTime();
+        try {
+            this.lastAccess = System.currentTimeMillis();
+            CallbackQueue queue = new CallbackQueue(callback, CallbackQueue.DEFAULT_CAPACITY, this.callbacks::remove);
+            this.callbacks.add(queue);
+            queue.start();
+        } finally {
+            ServerMetrics.SERVER.record(ServerMetrics.Call.REGISTER_CALLBACK, start);
+        }
     }
 
     @Override
-    public void updateFigure(Figure figure) throws RemoteException {
-        System.out.println("Figure updated : " + figure.toString());
-        this.figures.forEach(f -> {
-            if (f.getId()==(figure.getId())) {
-                f = figure;
+    public void unregisterCallback(Callback callback) {
+        long start = System.nanoTime();
+        try {
+            this.lastAccess = System.currentTimeMillis();
+            for (CallbackQueue queue : this.callbacks) {
+                if (queue.getCallback().equals(callback) && this.callbacks.remove(queue)) {
+                    queue.close();
+                }
             }
-        });
-        this.callbacks.forEach(c -> {
-            try {
-                c.edit(figure);
-            } catch (RemoteException e) {
-                // TODO Auto-generated catch block
-                e.printStackTrace();
+        } finally {
+            ServerMetrics.SERVER.record(ServerMetrics.Call.UNREGISTER_CALLBACK, start);
+        }
+    }
+
+    @Override
+    public boolean updateFigure(Figure figure) throws RemoteException {
+        long start = System.nanoTime();
+        try {
+            synchronized (this.pending) {
+                // concurrent edits are ordered by version, whatever their order of arrival
+                Figure current = this.figures.get(figure.getId());
+                if (current == null || figure.getVersion() <= current.getVersion() || !this.figures.update(figure)) {
+                    return false;
+                }
+                ServerLog.debug("Figure updated : %s", figure);
+                publish(Delta.update(figure));
+                return true;
             }
-        });
+        } finally {
+            ServerMetrics.SERVER.record(ServerMetrics.Call.UPDATE_FIGURE, start);
+        }
+    }
+
+    @Override
+    public void dragFigure(int id, double x, double y, double width, double height) throws RemoteException {
+        long start = System.nanoTime();
+        try {
+            synchronized (this.pending) {
+                if (this.figures.get(id) != null) {
+                    publish(Delta.drag(id, x, y, width, height));
+                }
+            }
+        } finally {
+            ServerMetrics.SERVER.record(ServerMetrics.Call.DRAG_FIGURE, start);
+        }
+    }
+
+    /**
+     * Record a change in the change log and add it to the current coalescing window, opening a new
+     * window if none is pending. Drags are only sent to the clients.
+     */
+    void publish(Delta delta) {
+        long now = System.currentTimeMillis();
+        this.lastAccess = now;
+        synchronized (this.pending) {
+            if (delta.getKind() != Delta.Kind.DRAG) {
+                this.changes.append(delta);
+                if (this.journal != null) {
+                    this.journal.append(delta);
+                }
+            }
+            this.pending.merge(delta.getId(), delta, Delta::merge);
+            if (!this.flushScheduled) {
+                this.flushScheduled = true;
+                this.windowStart = now;
+                this.flusher.schedule(this::flush, COALESCE_MILLIS, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /**
+     * Close the coalescing window and hand its changes to the outbound queue of every registered client
+     */
+    void flush() {
+        DeltaBatch batch;
+        synchronized (this.pending) {
+            if (this.pending.isEmpty()) {
+                this.flushScheduled = false;
+                return;
+            }
+            batch = new DeltaBatch(this.flushedRevision, this.changes.getRevision(),
+                    new ArrayList<>(this.pending.values()), this.windowStart);
+            this.flushedRevision = this.changes.getRevision();
+            this.pending.clear();
+            this.flushScheduled = false;
+        }
+        this.callbacks.forEach(c -> c.offer(batch));
+    }
+
+    public List<CallbackQueue> getCallbackQueues() {
+        return callbacks;
     }
 
 }
@@ -0,0 +1,448 @@
+package fr.ubs.scribbleOnline;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.zip.CRC32;
+
+import fr.ubs.scribble.Figure;
+import fr.ubs.scribble.FigureTable;
+import fr.ubs.scribble.ShapeRegistry;
+import fr.ubs.scribble.shapes.Shape;
+
+/**
+ * Persistent storage of a board: an append-only journal of the changes and a memory-mapped
+ * snapshot of the figures (see {@link MappedSnapshot}). Changes are queued in memory and written
+ * by a dedicated writer thread, which writes every change queued since its last write and then
+ * syncs the file once (group commit), so the RMI threads never wait for the disk. A snapshot
+ * replaces the journal written before it.
+ * <p>
+ * Each record is its length, with the high bit set, the record, and the CRC-32 of the record, so
+ * that a record torn by a crash is detected when the journal is replayed; the records of older
+ * journals have no CRC and their length has no high bit. When a write fails, the records not
+ * written yet are kept and written again until the write succeeds: a change is never dropped
+ * while the server runs.
+ * <p>
+ * The journal also records the ids leased to the clients, so that they are not leased again after
+ * a restart.
+ */
+public class FiguresJournal implements Runnable {
+
+    static final String JOURNAL = "journal.log";
+    static final String SNAPSHOT = "snapshot.dat";
+
+    private static final byte ADD = 0;
+    private static final byte UPDATE = 1;
+    private static final byte REMOVE = 2;
+    private static final byte LEASE = 3;
+    // additions and updates with the figure version, ADD and UPDATE are only read
+    private static final byte VERSIONED_ADD = 4;
+    private static final byte VERSIONED_UPDATE = 5;
+
+    /**
+     * the high bit of the length of the records followed by their CRC
+     */
+    private static final int CRC_FLAG = 0x80000000;
+
+    /**
+     * maximum time between two attempts to write the journal
+     */
+    static final long MAX_RETRY_MILLIS = 5000;
+
+    /**
+     * maximum time to wait for the pending changes to be written when the journal is closed
+     */
+    static final long CLOSE_TIMEOUT_MILLIS = 10000;
+
+    /**
+     * queued to stop the writer once the changes queued before have been written
+     */
+    private static final Object CLOSE = new Object();
+
+    private final Path dir;
+
+    /**
+     * A snapshot request: the figures of the board, and the first id that has never been leased
+     */
+    private static class Snapshot {
+        final FigureTable figures;
+        final int nextId;
+
+        Snapshot(FigureTable figures, int nextId) {
+            this.figures = figures;
+            this.nextId = nextId;
+        }
+    }
+
+    /**
+     * changes (Delta), id leases (Integer) and snapshot requests waiting to be written, in order
+     */
+    private final BlockingQueue<Object> queue = new LinkedBlockingQueue<>();
+    private final Thread writer;
+    private FileChannel channel;
+    private volatile long records;
+
+    /**
+     * Constructor
+     *
+     * @param dir the directory of the journal and snapshot files, created if needed
+     */
+    public FiguresJournal(Path dir) throws IOException {
+        this.dir = dir;
+        Files.createDirectories(dir);
+        this.writer = new Thread(this, "figures-journal");
+        this.writer.setDaemon(true);
+    }
+
+    /**
+     * Base the given store on the last snapshot and replay the journal into it. A change that was
+     * only partially written when the server stopped, detected by its length or its CRC, is
+     * discarded with the rest of the journal.
+     *
+     * @param store the store to be filled
+     */
+    public void load(FigureStore store) throws IOException {
+        Path snapshot = this.dir.resolve(SNAPSHOT);
+        if (Files.exists(snapshot)) {
+            store.setBase(MappedSnapshot.open(snapshot));
+        }
+        long valid = 0;
+        Path journal = this.dir.resolve(JOURNAL);
+        long size = Files.exists(journal) ? Files.size(journal) : 0;
+        if (Files.exists(journal)) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(journal)))) {
+                while (true) {
+                    int length = in.readInt();
+                    boolean checked = (length & CRC_FLAG) != 0;
+                    length &= ~CRC_FLAG;
+                    if (length > size - valid - 4) {
+                        break; // torn length
+                    }
+                    byte[] record = new byte[length];
+                    in.readFully(record);
+                    if (checked && in.readInt() != crc(record)) {
+                        break;
+                    }
+                    replay(store, new DataInputStream(new ByteArrayInputStream(record)));
+                    valid += 4 + record.length + (checked ? 4 : 0);
+                    this.records++;
+                }
+            } catch (EOFException e) {
+                // end of the journal
+            }
+            if (valid < size) {
+                ServerLog.warn("Journal %s: %d bytes of torn records discarded", this.dir, size - valid);
+            }
+        }
+        this.channel = FileChannel.open(journal, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        this.channel.truncate(valid);
+        this.channel.position(valid);
+        ServerLog.info("Board loaded from %s: %d figures, %d changes replayed", this.dir, store.size(), this.records);
+    }
+
+    private void replay(FigureStore store, DataInput in) throws IOException {
+        byte op = in.readByte();
+        if (op == REMOVE) {
+            store.remove(in.readInt());
+        } else if (op == LEASE) {
+            store.reserveIds(in.readInt());
+        } else {
+            long version = op == VERSIONED_ADD || op == VERSIONED_UPDATE ? in.readLong() : 0;
+            Figure figure = readFigure(in);
+            if (figure != null) {
+                figure.setVersion(version);
+                if (!store.update(figure)) {
+                    store.add(figure);
+                }
+            }
+        }
+    }
+
+    /**
+     * Start the writer thread, once the journal has been loaded
+     */
+    public void start() {
+        this.writer.start();
+    }
+
+    /**
+     * Write the changes queued so far, and stop the writer. If they cannot be written within
+     * {@link #CLOSE_TIMEOUT_MILLIS}, they are lost.
+     */
+    public void close() {
+        this.queue.add(CLOSE);
+        try {
+            this.writer.join(CLOSE_TIMEOUT_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (this.writer.isAlive()) {
+            ServerLog.error("Journal %s: closed before the last changes could be written", this.dir);
+            this.writer.interrupt();
+        }
+    }
+
+    /**
+     * Queue a change to be written, never blocks
+     *
+     * @param delta the change
+     */
+    public void append(Delta delta) {
+        this.queue.add(delta);
+    }
+
+    /**
+     * Queue an id lease to be written, never blocks
+     *
+     * @param nextId the first id that has never been leased, after the lease
+     */
+    public void lease(int nextId) {
+        this.queue.add(nextId);
+    }
+
+    /**
+     * Queue a snapshot to be written once the changes queued before have been written. The
+     * figures must be the state of the board after these changes.
+     *
+     * @param figures the figures of the board, in drawing order
+     * @param nextId  the first id that has never been leased
+     */
+    public void snapshot(FigureTable figures, int nextId) {
+        this.queue.add(new Snapshot(figures, nextId));
+    }
+
+    /**
+     * @return the number of changes written in the journal since the last snapshot
+     */
+    public long getRecords() {
+        return records;
+    }
+
+    @Override
+    public void run() {
+        List<Object> items = new ArrayList<>();
+        long delay = 100;
+        while (true) {
+            try {
+                if (items.isEmpty()) {
+                    items.add(this.queue.take());
+                    this.queue.drainTo(items);
+                }
+                if (write(items)) {
+                    return;
+                }
+                delay = 100;
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException e) {
+                // the items not written are kept, and written again
+                ServerLog.error("Journal %s: %s, trying again in %d ms", this.dir, e.getMessage(), delay);
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException f) {
+                    return;
+                }
+                delay = Math.min(2 * delay, MAX_RETRY_MILLIS);
+            }
+        }
+    }
+
+    /**
+     * Write queued items, removing them from the list once they are written
+     *
+     * @param items changes, leases, snapshot requests and close request
+     * @return true if the journal has been closed
+     */
+    private boolean write(List<Object> items) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        int count = 0;
+        while (count < items.size()) {
+            Object item = items.get(count);
+            if (item instanceof Delta) {
+                writeRecord(out, (Delta) item);
+                count++;
+            } else if (item instanceof Integer) {
+                writeLease(out, (Integer) item);
+                count++;
+            } else {
+                // the records before a snapshot must be written before it
+                writeBytes(bytes, count);
+                items.subList(0, count).clear();
+                count = 0;
+                if (item == CLOSE) {
+                    this.channel.close();
+                    return true;
+                }
+                writeSnapshot((Snapshot) item);
+                items.remove(0);
+            }
+        }
+        writeBytes(bytes, count);
+        items.clear();
+        return false;
+    }
+
+    private void writeRecord(DataOutputStream out, Delta delta) throws IOException {
+        ByteArrayOutputStream record = new ByteArrayOutputStream(64);
+        DataOutputStream data = new DataOutputStream(record);
+        if (delta.getKind() == Delta.Kind.REMOVE) {
+            data.writeByte(REMOVE);
+            data.writeInt(delta.getId());
+        } else {
+            data.writeByte(delta.getKind() == Delta.Kind.ADD ? VERSIONED_ADD : VERSIONED_UPDATE);
+            data.writeLong(delta.getFigure().getVersion());
+            writeFigure(data, delta.getFigure());
+        }
+        writeChecked(out, record.toByteArray());
+    }
+
+    private void writeLease(DataOutputStream out, int nextId) throws IOException {
+        ByteArrayOutputStream record = new ByteArrayOutputStream(5);
+        DataOutputStream data = new DataOutputStream(record);
+        data.writeByte(LEASE);
+        data.writeInt(nextId);
+        writeChecked(out, record.toByteArray());
+    }
+
+    /**
+     * Write a record with its length and its CRC
+     */
+    private static void writeChecked(DataOutputStream out, byte[] record) throws IOException {
+        out.writeInt(record.length | CRC_FLAG);
+        out.write(record);
+        out.writeInt(crc(record));
+    }
+
+    private static int crc(byte[] record) {
+        CRC32 crc = new CRC32();
+        crc.update(record);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Append the buffered records to the journal and sync it. If the write fails, the journal is
+     * truncated back to its previous end, so that the records can be written again.
+     *
+     * @param count the number of records
+     */
+    private void writeBytes(ByteArrayOutputStream bytes, int count) throws IOException {
+        if (bytes.size() > 0) {
+            long end = this.channel.position();
+            try {
+                ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+                while (buffer.hasRemaining()) {
+                    this.channel.write(buffer);
+                }
+                this.channel.force(false);
+            } catch (IOException e) {
+                try {
+                    this.channel.truncate(end);
+                    this.channel.position(end);
+                } catch (IOException f) {
+                    e.addSuppressed(f);
+                }
+                throw e;
+            }
+            bytes.reset();
+            this.records += count;
+        }
+    }
+
+    /**
+     * Write the snapshot in a temporary file, replace the previous snapshot with it, and clear the journal
+     */
+    private void writeSnapshot(Snapshot snapshot) throws IOException {
+        Path tmp = this.dir.resolve(SNAPSHOT + ".tmp");
+        try (FileOutputStream file = new FileOutputStream(tmp.toFile())) {
+            MappedSnapshot.write(file, snapshot.figures, snapshot.nextId);
+        }
+        Files.move(tmp, this.dir.resolve(SNAPSHOT), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        this.channel.truncate(0);
+        this.channel.position(0);
+        this.channel.force(true);
+        this.records = 0;
+    }
+
+    /**
+     * Write a figure: id, shape code (or shape class name), ARGB color and bounding box
+     */
+    static void writeFigure(DataOutput out, Figure figure) throws IOException {
+        int code = ShapeRegistry.getCode(figure.getShape());
+        out.writeInt(figure.getId());
+        out.writeByte(code);
+        if (code == ShapeRegistry.UNKNOWN) {
+            out.writeUTF(figure.getShape().getClass().getName());
+        }
+        out.writeInt(figure.getRGB());
+        out.writeDouble(figure.getX());
+        out.writeDouble(figure.getY());
+        out.writeDouble(figure.getWidth());
+        out.writeDouble(figure.getHeight());
+    }
+
+    /**
+     * Read a figure written by {@link #writeFigure(DataOutput, Figure)}
+     *
+     * @return the figure, null if its shape class cannot be loaded
+     */
+    static Figure readFigure(DataInput in) throws IOException {
+        return readFigure(in, false);
+    }
+
+    /**
+     * Read a figure written by {@link #writeFigure(DataOutput, Figure)}. A shape that is not
+     * registered is only made if its class is a {@link Shape}, and the class is not initialized
+     * before this check.
+     *
+     * @param registeredOnly true to skip the figures whose shape is not registered, e.g. when
+     *                       the figure comes from the network
+     * @return the figure, null if its shape class cannot be loaded or is not accepted
+     */
+    static Figure readFigure(DataInput in, boolean registeredOnly) throws IOException {
+        int id = in.readInt();
+        int code = in.readByte();
+        String classname = code == ShapeRegistry.UNKNOWN ? in.readUTF() : null;
+        int color = in.readInt();
+        double x = in.readDouble(), y = in.readDouble(), width = in.readDouble(), height = in.readDouble();
+        Shape shape;
+        if (classname == null) {
+            try {
+                shape = ShapeRegistry.getShape(code);
+            } catch (IllegalArgumentException e) {
+                throw new IOException(e.getMessage());
+            }
+        } else if (registeredOnly) {
+            return null;
+        } else {
+            try {
+                Class<?> type = Class.forName(classname, false, FiguresJournal.class.getClassLoader());
+                if (!Shape.class.isAssignableFrom(type)) {
+                    throw new ClassCastException(classname + " is not a shape");
+                }
+                shape = (Shape) type.getDeclaredConstructor().newInstance();
+            } catch (ReflectiveOperationException | ClassCastException e) {
+                ServerLog.warn("Figure %d skipped, unknown shape %s", id, classname);
+                return null;
+            }
+        }
+        return new Figure(id, shape, color, x, y, width, height);
+    }
+}
@@ -0,0 +1,116 @@
+package fr.ubs.scribbleOnline;
+
+import java.rmi.RemoteException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.IntSupplier;
+
+/**
+ * Gives the ids of the figures created by a client, from blocks of ids leased by the server
+ * (see {@link FiguresBox#leaseIds(int)}). The next block is leased in the background when half of
+ * the current block has been used, so creating a figure does not wait for the server.
+ * <p>
+ * Giving an id never blocks. If the current block runs out before the next one has been leased
+ * (e.g. the server cannot be reached), a temporary id is given: a random negative id, which leased
+ * ids never are. It is unique among the users of the board unless another client draws the same
+ * one, in which case the server rejects the second figure.
+ */
+public class IdLease implements IntSupplier {
+
+    /**
+     * number of ids leased at once
+     */
+    public static final int BLOCK_SIZE = 256;
+
+    private volatile FiguresBox figuresBox;
+    private final int size;
+
+    /**
+     * the current block: the next id to be given, and the first id after the block
+     */
+    private int next, end;
+
+    /**
+     * the first id of the next block, null until half of the current block has been used
+     */
+    private Future<Integer> nextBlock;
+
+    private final ExecutorService leaser = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "id-lease");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Constructor, leases the first block
+     *
+     * @param figuresBox the board
+     * @param size       the number of ids leased at once
+     */
+    public IdLease(FiguresBox figuresBox, int size) throws RemoteException {
+        this.figuresBox = figuresBox;
+        this.size = size;
+        this.next = figuresBox.leaseIds(size);
+        this.end = this.next + size;
+    }
+
+    /**
+     * Lease the next blocks from another server, when the board has moved. The ids of the
+     * current block remain valid: the leases are saved with the board.
+     */
+    public void setFiguresBox(FiguresBox figuresBox) {
+        this.figuresBox = figuresBox;
+    }
+
+    /**
+     * Give a new id, unique among all the users of the board, without waiting for the server
+     */
+    @Override
+    public synchronized int getAsInt() {
+        if (this.next == this.end) {
+            Integer first = takeNextBlock();
+            if (first == null) {
+                leaseNextBlock();
+                return ThreadLocalRandom.current().nextInt(Integer.MIN_VALUE, 0);
+            }
+            this.next = first;
+            this.end = first + this.size;
+        }
+        if (this.end - this.next <= this.size / 2) {
+            leaseNextBlock();
+        }
+        return this.next++;
+    }
+
+    /**
+     * Lease the next block in the background, unless it is already leased or being leased
+     */
+    private void leaseNextBlock() {
+        if (this.nextBlock == null) {
+            this.nextBlock = this.leaser.submit(() -> this.figuresBox.leaseIds(this.size));
+        }
+    }
+
+    /**
+     * @return the first id of the block leased in the background, null if it is not leased yet or the lease failed
+     */
+    private Integer takeNextBlock() {
+        if (this.nextBlock == null || !this.nextBlock.isDone()) {
+            return null;
+        }
+        try {
+            return this.nextBlock.get();
+        } catch (ExecutionException e) {
+            System.err.println("Id lease failed: " + e.getCause().getMessage());
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } finally {
+            this.nextBlock = null;
+        }
+    }
+}
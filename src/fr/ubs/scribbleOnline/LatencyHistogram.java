@@ -0,0 +1,139 @@
+package fr.ubs.scribbleOnline;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of durations in nanoseconds, with buckets of logarithmic width: each power of two is
+ * split into 64 buckets, so the values are recorded with a relative error below 1.6%, from 1 ns to
+ * the largest long, in a fixed amount of memory. Values can be recorded by several threads at once
+ * without locking.
+ */
+public class LatencyHistogram {
+
+    /**
+     * the values below are recorded exactly, in one bucket each
+     */
+    private static final int EXACT = 128;
+
+    /**
+     * the number of buckets of each power of two above {@link #EXACT}
+     */
+    private static final int SUB_BUCKETS = 64;
+
+    private static final int BUCKETS = EXACT + 56 * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Record a duration
+     *
+     * @param nanos the duration, negative durations are recorded as 0
+     */
+    public void record(long nanos) {
+        long value = Math.max(nanos, 0);
+        this.counts.incrementAndGet(indexOf(value));
+        this.count.incrementAndGet();
+        this.total.addAndGet(value);
+        this.max.accumulateAndGet(value, Math::max);
+    }
+
+    /**
+     * Add the values recorded by another histogram
+     */
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < BUCKETS; i++) {
+            long n = other.counts.get(i);
+            if (n != 0) {
+                this.counts.addAndGet(i, n);
+            }
+        }
+        this.count.addAndGet(other.count.get());
+        this.total.addAndGet(other.total.get());
+        this.max.accumulateAndGet(other.max.get(), Math::max);
+    }
+
+    /**
+     * Forget the recorded values. The values recorded meanwhile may be partly forgotten.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            this.counts.set(i, 0);
+        }
+        this.count.set(0);
+        this.total.set(0);
+        this.max.set(0);
+    }
+
+    /**
+     * @return the number of recorded values
+     */
+    public long getCount() {
+        return this.count.get();
+    }
+
+    /**
+     * @return the mean of the recorded values, 0 if none
+     */
+    public double getMean() {
+        long n = this.count.get();
+        return n == 0 ? 0 : (double) this.total.get() / n;
+    }
+
+    /**
+     * @return the largest recorded value, 0 if none
+     */
+    public long getMax() {
+        return this.max.get();
+    }
+
+    /**
+     * Give a percentile of the recorded values
+     *
+     * @param percentile between 0 and 100
+     * @return the largest value of the bucket where the percentile is, 0 if no value was recorded
+     */
+    public long getValueAtPercentile(double percentile) {
+        long n = this.count.get();
+        if (n == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * n));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += this.counts.get(i);
+            if (seen >= rank) {
+                return Math.min(i + 1 < BUCKETS ? lowestValue(i + 1) - 1 : Long.MAX_VALUE, getMax());
+            }
+        }
+        return getMax();
+    }
+
+    /**
+     * Describe the distribution in milliseconds: percentiles, mean and maximum
+     */
+    public String summary() {
+        return String.format("p50 %.2f p90 %.2f p99 %.2f p99.9 %.2f max %.2f mean %.2f ms (%d values)",
+                getValueAtPercentile(50) / 1e6, getValueAtPercentile(90) / 1e6, getValueAtPercentile(99) / 1e6,
+                getValueAtPercentile(99.9) / 1e6, getMax() / 1e6, getMean() / 1e6, getCount());
+    }
+
+    static int indexOf(long value) {
+        if (value < EXACT) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - 6;
+        return EXACT + (shift - 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+    }
+
+    static long lowestValue(int index) {
+        if (index < EXACT) {
+            return index;
+        }
+        int shift = (index - EXACT) / SUB_BUCKETS + 1;
+        return (long) ((index - EXACT) % SUB_BUCKETS + SUB_BUCKETS) << shift;
+    }
+}
@@ -0,0 +1,296 @@
+package fr.ubs.scribbleOnline;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.rmi.registry.LocateRegistry;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.MBeanServerConnection;
+import javax.management.remote.JMXConnector;
+import javax.management.remote.JMXConnectorFactory;
+import javax.management.remote.JMXServiceURL;
+
+import com.sun.management.OperatingSystemMXBean;
+
+/**
+ * Measures how a server behaves with many users: simulated clients without user interface (see
+ * {@link SimulatedClient}) edit the same board at a given rate, and the throughput, the duration
+ * of the edit calls and the time the changes take to reach the clients are reported, with the CPU
+ * and heap used by the server.
+ * <p>
+ * By default, a server is started on localhost in another JVM, with the JMX agent enabled so that
+ * its CPU and heap can be read. A server already running can be used instead; its CPU and heap
+ * are then only reported if its JMX agent port is given.
+ */
+public class LoadGenerator {
+
+    /**
+     * system property giving the number of edits per second of each client
+     */
+    static final String RATE_PROPERTY = "scribble.load.rate";
+
+    /**
+     * system property giving the number of figures drawn by each client
+     */
+    static final String FIGURES_PROPERTY = "scribble.load.figures";
+
+    /**
+     * system property giving the board edited by the clients
+     */
+    static final String BOARD_PROPERTY = "scribble.load.board";
+
+    /**
+     * system property giving the port of the JMX agent of the server
+     */
+    static final String JMX_PORT_PROPERTY = "scribble.load.jmxPort";
+
+    /**
+     * port of the server started by the load generator
+     */
+    static final int DEFAULT_PORT = 5100;
+
+    /**
+     * maximum time to wait for the server to start
+     */
+    static final long START_TIMEOUT_MILLIS = 30000;
+
+    private final String host;
+    private final int port;
+    private final int clients;
+    private final double rate;
+    private final int maxFigures;
+    private final String board;
+    private Process server;
+    private JMXConnector jmx;
+    private OperatingSystemMXBean serverSystem;
+    private MemoryMXBean serverMemory;
+
+    private final Map<Long, SimulatedClient.Sent> sent = new ConcurrentHashMap<>();
+    private final LatencyHistogram edits = new LatencyHistogram();
+    private final LatencyHistogram broadcasts = new LatencyHistogram();
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicLong superseded = new AtomicLong();
+
+    public LoadGenerator(String host, int port, int clients) {
+        this.host = host;
+        this.port = port;
+        this.clients = clients;
+        this.rate = Double.parseDouble(System.getProperty(RATE_PROPERTY, "2"));
+        this.maxFigures = Integer.getInteger(FIGURES_PROPERTY, 20);
+        this.board = System.getProperty(BOARD_PROPERTY, BoardDirectoryImpl.DEFAULT_BOARD);
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length != 2 && args.length != 4 || !args[0].matches("[0-9]+") || !args[1].matches("[0-9]+")
+                || args.length == 4 && !args[3].matches("[0-9]+")) {
+            printUsage();
+        }
+        // the callbacks of the simulated clients are called back on localhost
+        if (System.getProperty("java.rmi.server.hostname") == null) {
+            System.setProperty("java.rmi.server.hostname", "localhost");
+        }
+        LoadGenerator generator = args.length == 4
+                ? new LoadGenerator(args[2], Integer.parseInt(args[3]), Integer.parseInt(args[0]))
+                : new LoadGenerator("localhost", DEFAULT_PORT, Integer.parseInt(args[0]));
+        try {
+            if (args.length == 2) {
+                generator.startServer();
+            }
+            generator.connectJmx();
+            generator.run(Integer.parseInt(args[1]));
+        } finally {
+            generator.stopServer();
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Start a server in another JVM, with the classpath of this one, and wait until it is ready
+     */
+    void startServer() throws IOException, InterruptedException {
+        int jmxPort = Integer.getInteger(JMX_PORT_PROPERTY, this.port + 1);
+        System.setProperty(JMX_PORT_PROPERTY, String.valueOf(jmxPort));
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        this.server = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                "-Djava.rmi.server.hostname=localhost",
+                "-Dcom.sun.management.jmxremote.port=" + jmxPort,
+                "-Dcom.sun.management.jmxremote.rmi.port=" + jmxPort,
+                "-Dcom.sun.management.jmxremote.host=localhost",
+                "-Dcom.sun.management.jmxremote.authenticate=false",
+                "-Dcom.sun.management.jmxremote.ssl=false",
+                ScribbleServeur.class.getName(), String.valueOf(this.port))
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                .redirectError(ProcessBuilder.Redirect.INHERIT)
+                .start();
+        long end = System.currentTimeMillis() + START_TIMEOUT_MILLIS;
+        while (true) {
+            try {
+                LocateRegistry.getRegistry(this.host, this.port).lookup("Boards");
+                return;
+            } catch (RemoteException | NotBoundException e) {
+                if (!this.server.isAlive() || System.currentTimeMillis() > end) {
+                    throw new IOException("The server did not start", e);
+                }
+                Thread.sleep(100);
+            }
+        }
+    }
+
+    void stopServer() {
+        if (this.jmx != null) {
+            try {
+                this.jmx.close();
+            } catch (IOException e) {
+                // the server is stopping
+            }
+        }
+        if (this.server != null) {
+            this.server.destroy();
+        }
+    }
+
+    /**
+     * Connect to the JMX agent of the server, if its port is known
+     */
+    void connectJmx() {
+        Integer jmxPort = Integer.getInteger(JMX_PORT_PROPERTY);
+        if (jmxPort == null) {
+            return;
+        }
+        try {
+            this.jmx = JMXConnectorFactory.connect(new JMXServiceURL(
+                    "service:jmx:rmi:///jndi/rmi://" + this.host + ":" + jmxPort + "/jmxrmi"));
+            MBeanServerConnection connection = this.jmx.getMBeanServerConnection();
+            this.serverSystem = ManagementFactory.newPlatformMXBeanProxy(connection,
+                    ManagementFactory.OPERATING_SYSTEM_MXBEAN_NAME, OperatingSystemMXBean.class);
+            this.serverMemory = ManagementFactory.newPlatformMXBeanProxy(connection,
+                    ManagementFactory.MEMORY_MXBEAN_NAME, MemoryMXBean.class);
+        } catch (IOException e) {
+            System.err.println("Server CPU and heap not available: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Connect the clients, let them edit the board, and report every second and at the end
+     *
+     * @param seconds the duration of the edits
+     */
+    void run(int seconds) throws RemoteException, NotBoundException, InterruptedException {
+        BoardDirectory boards = (BoardDirectory) LocateRegistry.getRegistry(this.host, this.port).lookup("Boards");
+        List<SimulatedClient> simulated = new ArrayList<>();
+        for (int i = 0; i < this.clients; i++) {
+            SimulatedClient client = new SimulatedClient(i + 1, boards.openBoard(this.board), this.maxFigures,
+                    this.sent, this.clients, this.edits, this.broadcasts, this.received, this.superseded);
+            client.connect();
+            simulated.add(client);
+        }
+        System.out.println(this.clients + " clients connected to " + this.host + ":" + this.port + ", "
+                + this.rate + " edits per second each, for " + seconds + " s");
+
+        ScheduledExecutorService editors = Executors.newScheduledThreadPool(
+                Math.min(this.clients, 4 * Runtime.getRuntime().availableProcessors()));
+        long period = (long) (TimeUnit.SECONDS.toNanos(1) / this.rate);
+        Random random = new Random();
+        for (SimulatedClient client : simulated) {
+            editors.scheduleAtFixedRate(client, (long) (random.nextDouble() * period), period, TimeUnit.NANOSECONDS);
+        }
+
+        long start = System.nanoTime();
+        long startCpu = getServerCpuTime();
+        long maxHeap = 0;
+        long lastEdits = 0;
+        long lastReceived = 0;
+        long lastCpu = startCpu;
+        for (int i = 1; i <= seconds; i++) {
+            TimeUnit.NANOSECONDS.sleep(start + TimeUnit.SECONDS.toNanos(i) - System.nanoTime());
+            long edits = this.edits.getCount();
+            long received = this.received.get();
+            long cpu = getServerCpuTime();
+            long heap = getServerHeap();
+            maxHeap = Math.max(maxHeap, heap);
+            System.out.println(String.format("%4d s: %6d edits/s %8d changes received/s, server CPU %s heap %s",
+                    i, edits - lastEdits, received - lastReceived, formatCpu(cpu - lastCpu, TimeUnit.SECONDS.toNanos(1)),
+                    formatHeap(heap)));
+            lastEdits = edits;
+            lastReceived = received;
+            lastCpu = cpu;
+        }
+        editors.shutdownNow();
+        editors.awaitTermination(10, TimeUnit.SECONDS);
+        long elapsed = System.nanoTime() - start;
+        long cpu = getServerCpuTime();
+
+        Thread.sleep(1000); // the changes still being broadcast
+        simulated.forEach(SimulatedClient::disconnect);
+
+        double elapsedSeconds = elapsed / 1e9;
+        System.out.println();
+        System.out.println(String.format("Throughput: %.0f edits/s, %.0f changes received/s",
+                this.edits.getCount() / elapsedSeconds, this.received.get() / elapsedSeconds));
+        System.out.println("Edit calls:     " + this.edits.summary());
+        System.out.println("Broadcasts:     " + this.broadcasts.summary());
+        long lost = this.sent.values().stream().mapToLong(edit -> edit.left.get()).sum();
+        System.out.println(String.format("Not received:   %d superseded by a newer version, %d never delivered",
+                this.superseded.get(), lost));
+        System.out.println("Server CPU " + formatCpu(cpu - startCpu, elapsed) + ", max heap " + formatHeap(maxHeap));
+    }
+
+    /**
+     * @return the CPU time of the server in nanoseconds, -1 if not available
+     */
+    private long getServerCpuTime() {
+        try {
+            return this.serverSystem == null ? -1 : this.serverSystem.getProcessCpuTime();
+        } catch (RuntimeException e) { // the JMX connection is lost
+            return -1;
+        }
+    }
+
+    /**
+     * @return the heap used by the server in bytes, -1 if not available
+     */
+    private long getServerHeap() {
+        try {
+            return this.serverMemory == null ? -1 : this.serverMemory.getHeapMemoryUsage().getUsed();
+        } catch (RuntimeException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Give the CPU used during a period, in percent of one processor
+     */
+    private static String formatCpu(long cpu, long elapsed) {
+        return cpu < 0 ? "n/a" : String.format("%.0f%%", 100.0 * cpu / elapsed);
+    }
+
+    private static String formatHeap(long heap) {
+        return heap < 0 ? "n/a" : (heap >> 20) + " MB";
+    }
+
+    public static void printUsage() {
+        System.out.println("Usage: java -cp Serveur.jar fr.ubs.scribbleOnline.LoadGenerator <clients> <seconds> [<host> <port>]");
+        System.out.println("With: ");
+        System.out.println("\tclients: number of simulated clients");
+        System.out.println("\tseconds: duration of the test");
+        System.out.println("\thost, port: a server already running, else a server is started on port " + DEFAULT_PORT);
+        System.out.println("Options: ");
+        System.out.println("\t-D" + RATE_PROPERTY + "=<rate>: edits per second of each client (2 by default)");
+        System.out.println("\t-D" + FIGURES_PROPERTY + "=<count>: figures drawn by each client (20 by default)");
+        System.out.println("\t-D" + BOARD_PROPERTY + "=<name>: board edited by the clients (the default board by default)");
+        System.out.println("\t-D" + JMX_PORT_PROPERTY + "=<port>: port of the JMX agent of the server, to report its CPU and heap");
+        System.exit(-1);
+    }
+}
@@ -0,0 +1,296 @@
+package fr.ubs.scribbleOnline;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import fr.ubs.scribble.Figure;
+import fr.ubs.scribble.FigureTable;
+import fr.ubs.scribble.ShapeRegistry;
+import fr.ubs.scribble.shapes.Shape;
+
+/**
+ * A snapshot of a board stored as fixed-size records in a memory-mapped file. Opening a snapshot
+ * only maps the file: figures are read from their record when they are needed, so the time to
+ * open a snapshot does not depend on the number of figures. The file is mapped in segments of
+ * {@link #SEGMENT_SIZE} bytes, so a snapshot may be larger than 2 GB.
+ * <p>
+ * File layout (big-endian):
+ * <ul>
+ * <li>header: magic, version, figure count, next id (4 ints), index offset, shape table offset (2 longs).
+ * The next id is the first id that had never been leased, 0 if unknown</li>
+ * <li>one record per figure in drawing order: id, shape code, ARGB color, reserved (4 ints),
+ * x, y, width, height (4 doubles), version (long). The records of version 1 files have no version</li>
+ * <li>index: (id, record number) pairs sorted by id</li>
+ * <li>shape table: the class names of the shapes that have no {@link ShapeRegistry} code, referred
+ * to by negative shape codes in the records (-2 for the first one, -3 for the second one...)</li>
+ * </ul>
+ */
+public class MappedSnapshot {
+
+    static final int MAGIC = 0x53435242; // SCRB
+    static final int VERSION = 2;
+    static final int HEADER_SIZE = 32;
+    static final int RECORD_SIZE = 56;
+    static final int V1_RECORD_SIZE = 48;
+    static final int INDEX_ENTRY_SIZE = 8;
+
+    /**
+     * the size of the mapped segments of the file. Each segment also maps the first bytes of the
+     * next one, so that a record or an index entry is never split between two segments.
+     */
+    static final long SEGMENT_SIZE = 1L << 30;
+
+    /**
+     * the file, mapped in segments
+     */
+    private final MappedByteBuffer[] segments;
+    private final int recordSize;
+    private final int count;
+    private final int nextId;
+    private final long indexOffset;
+
+    /**
+     * the shapes of the shape table, null if their class cannot be loaded
+     */
+    private final Shape[] shapes;
+
+    private MappedSnapshot(FileChannel channel, Path path) throws IOException {
+        long size = channel.size();
+        if (size < HEADER_SIZE) {
+            throw new IOException(path + " is not a board snapshot");
+        }
+        this.segments = new MappedByteBuffer[(int) ((size - 1) / SEGMENT_SIZE) + 1];
+        for (int i = 0; i < this.segments.length; i++) {
+            long start = i * SEGMENT_SIZE;
+            this.segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start,
+                    Math.min(SEGMENT_SIZE + RECORD_SIZE, size - start));
+        }
+        int version = getInt(4);
+        if (getInt(0) != MAGIC || version < 1 || version > VERSION) {
+            throw new IOException(path + " is not a board snapshot");
+        }
+        this.recordSize = version == 1 ? V1_RECORD_SIZE : RECORD_SIZE;
+        this.count = getInt(8);
+        this.nextId = getInt(12);
+        this.indexOffset = getLong(16);
+        long tableOffset = getLong(24);
+        if (tableOffset < HEADER_SIZE || tableOffset > size || size - tableOffset > Integer.MAX_VALUE) {
+            throw new IOException(path + " is not a board snapshot");
+        }
+        ByteBuffer table = ByteBuffer.allocate((int) (size - tableOffset));
+        while (table.hasRemaining() && channel.read(table, tableOffset + table.position()) >= 0) {
+            // read the whole shape table
+        }
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(table.array()));
+        this.shapes = new Shape[in.readInt()];
+        for (int i = 0; i < this.shapes.length; i++) {
+            String classname = in.readUTF();
+            try {
+                this.shapes[i] = (Shape) Class.forName(classname).getDeclaredConstructor().newInstance();
+            } catch (ReflectiveOperationException | ClassCastException e) {
+                ServerLog.warn("Unknown shape %s in %s", classname, path);
+            }
+        }
+    }
+
+    /**
+     * Map a snapshot file
+     *
+     * @param path the snapshot file
+     * @return the mapped snapshot
+     */
+    public static MappedSnapshot open(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return new MappedSnapshot(channel, path);
+        }
+    }
+
+    /**
+     * Write a snapshot file
+     *
+     * @param file    the stream of the file, synced before it is closed
+     * @param figures the figures, in drawing order
+     * @param nextId  the first id that has never been leased
+     */
+    public static void write(FileOutputStream file, FigureTable figures, int nextId) throws IOException {
+        List<String> classnames = new ArrayList<>();
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file, 1 << 16));
+        long indexOffset = HEADER_SIZE + (long) RECORD_SIZE * figures.size();
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(figures.size());
+        out.writeInt(nextId);
+        out.writeLong(indexOffset);
+        out.writeLong(indexOffset + (long) INDEX_ENTRY_SIZE * figures.size());
+        long[] index = new long[figures.size()];
+        int i = 0;
+        for (int row = 0; row < figures.getRowCount(); row++) {
+            if (figures.isRemoved(row)) {
+                continue;
+            }
+            Shape shape = figures.getShape(row);
+            int code = ShapeRegistry.getCode(shape);
+            if (code == ShapeRegistry.UNKNOWN) {
+                String classname = shape.getClass().getName();
+                if (!classnames.contains(classname)) {
+                    classnames.add(classname);
+                }
+                code = -2 - classnames.indexOf(classname);
+            }
+            out.writeInt(figures.getId(row));
+            out.writeInt(code);
+            out.writeInt(figures.getColor(row));
+            out.writeInt(0);
+            out.writeDouble(figures.getX(row));
+            out.writeDouble(figures.getY(row));
+            out.writeDouble(figures.getWidth(row));
+            out.writeDouble(figures.getHeight(row));
+            out.writeLong(figures.getVersion(row));
+            index[i] = ((long) figures.getId(row) << 32) | i;
+            i++;
+        }
+        Arrays.sort(index);
+        for (long entry : index) {
+            out.writeLong(entry);
+        }
+        out.writeInt(classnames.size());
+        for (String classname : classnames) {
+            out.writeUTF(classname);
+        }
+        out.flush();
+        file.getFD().sync();
+    }
+
+    /**
+     * @return the number of figures in the snapshot
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * @return the first id that had never been given to a figure nor leased when the snapshot was written
+     */
+    public int getNextId() {
+        int maxId = count == 0 ? 0 : getInt(indexOffset + (long) (count - 1) * INDEX_ENTRY_SIZE);
+        return Math.max(nextId, maxId + 1);
+    }
+
+    /**
+     * @param index the record number, in drawing order
+     * @return the id of the figure
+     */
+    public int getId(int index) {
+        return getInt(offset(index));
+    }
+
+    /**
+     * Find the record of a figure, by binary search in the index
+     *
+     * @param id a figure id
+     * @return the record number of the figure, -1 if the snapshot has no figure with this id
+     */
+    public int indexOf(int id) {
+        int low = 0, high = count - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            long offset = indexOffset + (long) middle * INDEX_ENTRY_SIZE;
+            int value = getInt(offset);
+            if (value < id) {
+                low = middle + 1;
+            } else if (value > id) {
+                high = middle - 1;
+            } else {
+                return getInt(offset + 4);
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Make a figure from its record
+     *
+     * @param index the record number, in drawing order
+     * @return a new figure, null if its shape class cannot be loaded
+     */
+    public Figure getFigure(int index) {
+        long offset = offset(index);
+        int code = getInt(offset + 4);
+        Shape shape = code >= 0 ? ShapeRegistry.getShape(code) : shapes[-2 - code];
+        if (shape == null) {
+            return null;
+        }
+        Figure figure = new Figure(getInt(offset), shape, getInt(offset + 8),
+                getDouble(offset + 16), getDouble(offset + 24),
+                getDouble(offset + 32), getDouble(offset + 40));
+        if (recordSize > V1_RECORD_SIZE) {
+            figure.setVersion(getLong(offset + 48));
+        }
+        return figure;
+    }
+
+    /**
+     * @return true if the class of some shapes of the shape table cannot be loaded
+     */
+    public boolean hasUnknownShapes() {
+        return Arrays.asList(shapes).contains(null);
+    }
+
+    /**
+     * @param index the record number, in drawing order
+     * @return false if the shape class of the figure cannot be loaded
+     */
+    public boolean isReadable(int index) {
+        int code = getInt(offset(index) + 4);
+        return code >= 0 || shapes[-2 - code] != null;
+    }
+
+    /**
+     * Add a figure of the snapshot to a table, without making a figure object
+     *
+     * @param table the table
+     * @param index the record number, in drawing order
+     * @return false if the shape class of the figure cannot be loaded, or the table already has its id
+     */
+    public boolean addTo(FigureTable table, int index) {
+        long offset = offset(index);
+        int code = getInt(offset + 4);
+        Shape shape = code >= 0 ? ShapeRegistry.getShape(code) : shapes[-2 - code];
+        return shape != null && table.add(getInt(offset), shape, getInt(offset + 8),
+                getDouble(offset + 16), getDouble(offset + 24),
+                getDouble(offset + 32), getDouble(offset + 40),
+                recordSize > V1_RECORD_SIZE ? getLong(offset + 48) : 0);
+    }
+
+    /**
+     * @param index the record number, in drawing order
+     * @return the position of the record in the file
+     */
+    private long offset(int index) {
+        return HEADER_SIZE + (long) index * recordSize;
+    }
+
+    private int getInt(long position) {
+        return segments[(int) (position / SEGMENT_SIZE)].getInt((int) (position % SEGMENT_SIZE));
+    }
+
+    private long getLong(long position) {
+        return segments[(int) (position / SEGMENT_SIZE)].getLong((int) (position % SEGMENT_SIZE));
+    }
+
+    private double getDouble(long position) {
+        return segments[(int) (position / SEGMENT_SIZE)].getDouble((int) (position % SEGMENT_SIZE));
+    }
+}
@@ -0,0 +1,336 @@
+package fr.ubs.scribbleOnline;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.rmi.NoSuchObjectException;
+import java.rmi.RemoteException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+
+import fr.ubs.scribble.Figure;
+import fr.ubs.scribble.Figures;
+
+/**
+ * A client connection of the {@link NioServer}. The frames are read and written by the selector
+ * thread, and the requests are handled by the worker of the connection. The connection is the
+ * callback of its client: pushing changes only queues a frame to be written.
+ * <p>
+ * The requests waiting for the worker and the frames waiting to be written are counted together.
+ * While they are over {@link #MAX_PENDING_BYTES}, nothing more is read from the client, and a
+ * request still waiting for the worker closes the connection instead of being handled: a client
+ * that sends requests and never reads the results cannot make the server run out of memory.
+ */
+class NioConnection implements Callback {
+
+    /**
+     * maximum number of bytes of requests waiting to be handled and of frames waiting to be
+     * written, before the client is considered too slow
+     */
+    static final int MAX_PENDING_BYTES = 8 << 20;
+
+    /**
+     * the bytes counted for a request waiting for the worker, besides the frame itself
+     */
+    private static final int REQUEST_OVERHEAD = 64;
+
+    private final NioServer server;
+    private final SocketChannel channel;
+    private final Executor worker;
+    private SelectionKey key;
+
+    /**
+     * the bytes read and not yet handled (only used by the selector thread)
+     */
+    private ByteBuffer input = ByteBuffer.allocate(1 << 16);
+
+    /**
+     * the frames waiting to be written
+     */
+    private final Queue<ByteBuffer> output = new ConcurrentLinkedQueue<>();
+
+    /**
+     * the number of bytes of the requests waiting to be handled and of the frames waiting to be written
+     */
+    private final AtomicLong pendingBytes = new AtomicLong();
+    private volatile boolean closed;
+
+    /**
+     * the board opened by the client (only used by the worker)
+     */
+    private FiguresBoxImpl box;
+
+    NioConnection(NioServer server, SocketChannel channel, Executor worker) {
+        this.server = server;
+        this.channel = channel;
+        this.worker = worker;
+    }
+
+    void setKey(SelectionKey key) {
+        this.key = key;
+    }
+
+    /**
+     * Read the available bytes and hand the complete frames to the worker, on the selector thread
+     */
+    void read() {
+        try {
+            int count = this.channel.read(this.input);
+            if (count < 0) {
+                close();
+                return;
+            }
+            ServerMetrics.SERVER.addBytesReceived(count);
+        } catch (IOException e) {
+            close();
+            return;
+        }
+        this.input.flip();
+        int needed = 0;
+        while (this.input.remaining() >= 4) {
+            int length = this.input.getInt(this.input.position());
+            if (length < NioProtocol.HEADER_SIZE || length > NioProtocol.MAX_FRAME) {
+                ServerLog.warn("Invalid frame from %s, closing", this);
+                close();
+                return;
+            }
+            if (this.input.remaining() < 4 + length) {
+                needed = 4 + length;
+                break;
+            }
+            byte[] frame = new byte[length];
+            this.input.position(this.input.position() + 4);
+            this.input.get(frame);
+            this.pendingBytes.addAndGet(length + REQUEST_OVERHEAD);
+            this.worker.execute(() -> handle(frame));
+        }
+        this.input.compact();
+        if (this.pendingBytes.get() > MAX_PENDING_BYTES) {
+            this.key.interestOps(this.key.interestOps() & ~SelectionKey.OP_READ);
+        }
+        if (needed > this.input.capacity()) {
+            ByteBuffer bigger = ByteBuffer.allocate(Math.max(needed, 2 * this.input.capacity()));
+            this.input.flip();
+            bigger.put(this.input);
+            this.input = bigger;
+        }
+    }
+
+    /**
+     * Write the queued frames until the channel is full, on the selector thread
+     */
+    void write() {
+        ByteBuffer frame;
+        while ((frame = this.output.peek()) != null) {
+            try {
+                ServerMetrics.SERVER.addBytesSent(this.channel.write(frame));
+            } catch (IOException e) {
+                close();
+                return;
+            }
+            if (frame.hasRemaining()) {
+                return; // written when the channel can be written again
+            }
+            this.output.poll();
+            this.pendingBytes.addAndGet(-frame.capacity());
+        }
+        this.key.interestOps(readOps());
+    }
+
+    /**
+     * Wait for the channel to be writable, on the selector thread
+     */
+    void enableWrite() {
+        if (this.key.isValid()) {
+            this.key.interestOps(readOps() | SelectionKey.OP_WRITE);
+        }
+    }
+
+    /**
+     * @return OP_READ, or 0 while too many bytes are pending
+     */
+    private int readOps() {
+        return this.pendingBytes.get() > MAX_PENDING_BYTES ? 0 : SelectionKey.OP_READ;
+    }
+
+    private void send(ByteBuffer frame) {
+        if (!this.closed) {
+            this.pendingBytes.addAndGet(frame.capacity());
+            this.output.add(frame);
+            this.server.requestWrite(this);
+        }
+    }
+
+    /**
+     * Close the connection
+     */
+    private synchronized void close() {
+        if (this.closed) {
+            return;
+        }
+        this.closed = true;
+        this.key.cancel();
+        try {
+            this.channel.close();
+        } catch (IOException e) {
+            // closed anyway
+        }
+        this.worker.execute(() -> {
+            if (this.box != null) {
+                this.box.unregisterCallback(this);
+            }
+        });
+    }
+
+    /**
+     * Handle a request, on the worker of the connection
+     */
+    private void handle(byte[] frame) {
+        int size = frame.length + REQUEST_OVERHEAD;
+        try {
+            if (this.closed) {
+                return;
+            }
+            if (this.pendingBytes.get() - size > MAX_PENDING_BYTES) {
+                ServerLog.warn("%s does not read its results, closing", this);
+                close();
+                return;
+            }
+            handleRequest(frame);
+        } finally {
+            long pending = this.pendingBytes.addAndGet(-size);
+            if (pending <= MAX_PENDING_BYTES && pending + size > MAX_PENDING_BYTES) {
+                this.server.requestWrite(this); // reading again
+            }
+        }
+    }
+
+    private void handleRequest(byte[] frame) {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(frame));
+        int id = 0;
+        try {
+            byte type = in.readByte();
+            id = in.readInt();
+            NioProtocol.Payload result = dispatch(type, in);
+            if (id != 0) {
+                send(NioProtocol.frame(NioProtocol.RESULT, id, result));
+            }
+        } catch (Exception e) {
+            if (id != 0) {
+                String message = String.valueOf(e.getMessage());
+                try {
+                    send(NioProtocol.frame(NioProtocol.ERROR, id, out -> out.writeUTF(message)));
+                } catch (IOException ignored) {
+                    // not thrown by a frame in memory
+                }
+            }
+        }
+    }
+
+    private NioProtocol.Payload dispatch(byte type, DataInputStream in) throws IOException {
+        if (type == NioProtocol.OPEN) {
+            if (this.box != null) {
+                this.box.unregisterCallback(this);
+            }
+            this.box = this.server.getBoards().openLocalBoard(in.readUTF());
+            return NioProtocol.EMPTY;
+        }
+        if (this.box == null || this.box.isClosed()) {
+            throw new RemoteException("No board open");
+        }
+        switch (type) {
+            case NioProtocol.ADD: {
+                boolean accepted = this.box.addFigure(readFigure(in));
+                return out -> out.writeBoolean(accepted);
+            }
+            case NioProtocol.UPDATE: {
+                boolean accepted = this.box.updateFigure(readFigure(in));
+                return out -> out.writeBoolean(accepted);
+            }
+            case NioProtocol.REMOVE: {
+                Figure figure = this.box.removeFigure(in.readInt());
+                return out -> NioProtocol.writeOptionalFigure(out, figure);
+            }
+            case NioProtocol.DRAG:
+                this.box.dragFigure(in.readInt(), in.readDouble(), in.readDouble(), in.readDouble(), in.readDouble());
+                return NioProtocol.EMPTY;
+            case NioProtocol.GET_FIGURES: {
+                Figures figures = this.box.getFigures();
+                return out -> NioProtocol.writeFigures(out, figures);
+            }
+            case NioProtocol.SNAPSHOT: {
+                SnapshotPage page = this.box.getSnapshot(in.readLong(), in.readInt(), in.readInt());
+                return out -> NioProtocol.writePage(out, page);
+            }
+            case NioProtocol.CHANGES: {
+                DeltaBatch batch = this.box.getChangesSince(in.readLong());
+                return out -> NioProtocol.writeBatch(out, batch);
+            }
+            case NioProtocol.LEASE: {
+                int first = this.box.leaseIds(in.readInt());
+                return out -> out.writeInt(first);
+            }
+            case NioProtocol.REGISTER:
+                this.box.registerCallback(this);
+                return NioProtocol.EMPTY;
+            case NioProtocol.UNREGISTER:
+                this.box.unregisterCallback(this);
+                return NioProtocol.EMPTY;
+            default:
+                throw new IOException("Unknown request " + type);
+        }
+    }
+
+    private static Figure readFigure(DataInputStream in) throws IOException {
+        Figure figure = NioProtocol.readFigure(in);
+        if (figure == null) {
+            throw new IOException("Unknown shape");
+        }
+        return figure;
+    }
+
+    /**
+     * Queue a frame pushed to the client
+     *
+     * @throws NoSuchObjectException if the connection is closed
+     * @throws RemoteException       if the client does not read the frames pushed before
+     */
+    private void push(byte type, NioProtocol.Payload payload) throws RemoteException {
+        if (this.closed) {
+            throw new NoSuchObjectException("Connection closed");
+        }
+        if (this.pendingBytes.get() > MAX_PENDING_BYTES) {
+            throw new RemoteException("Client does not read its changes");
+        }
+        try {
+            send(NioProtocol.frame(type, 0, payload));
+        } catch (IOException e) {
+            throw new RemoteException("Cannot write the changes", e);
+        }
+    }
+
+    @Override
+    public void editAll(DeltaBatch batch) throws RemoteException {
+        push(NioProtocol.EDIT_ALL, out -> NioProtocol.writeBatch(out, batch));
+    }
+
+    @Override
+    public void boardMoved() throws RemoteException {
+        push(NioProtocol.BOARD_MOVED, NioProtocol.EMPTY);
+    }
+
+    @Override
+    public void ping() throws RemoteException {
+        push(NioProtocol.PING, NioProtocol.EMPTY);
+    }
+
+    @Override
+    public String toString() {
+        return "connection " + this.channel.socket().getRemoteSocketAddress();
+    }
+}
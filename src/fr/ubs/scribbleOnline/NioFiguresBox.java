@@ -0,0 +1,330 @@
+package fr.ubs.scribbleOnline;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.rmi.ConnectException;
+import java.rmi.RemoteException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import fr.ubs.scribble.Figure;
+import fr.ubs.scribble.Figures;
+
+/**
+ * A board served by a {@link NioServer}, used like an RMI board. All the calls share a single
+ * connection: each request has an id, and a reader thread completes the call waiting for the
+ * response with this id. The changes pushed by the server are handed to the registered callback,
+ * in order, by a dedicated thread, so the callback may call the board.
+ * <p>
+ * Only the registered shapes can be drawn, see {@link NioProtocol}.
+ */
+public class NioFiguresBox implements FiguresBox, Runnable {
+
+    /**
+     * maximum time to wait for a response
+     */
+    static final long TIMEOUT_SECONDS = 30;
+
+    private final SocketChannel channel;
+    private final String address;
+    private final Map<Integer, CompletableFuture<DataInputStream>> calls = new ConcurrentHashMap<>();
+    private final AtomicInteger lastId = new AtomicInteger();
+    private final Thread reader;
+    private final ExecutorService notifier = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "nio-callback");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private volatile Callback callback;
+    private volatile boolean closed;
+
+    private NioFiguresBox(SocketChannel channel, String address) {
+        this.channel = channel;
+        this.address = address;
+        this.reader = new Thread(this, "nio-reader");
+        this.reader.setDaemon(true);
+    }
+
+    /**
+     * Connect to a server and open a board
+     *
+     * @param host  the host of the server
+     * @param port  the port of the socket server
+     * @param board the board name
+     * @return the board
+     */
+    public static NioFiguresBox open(String host, int port, String board) throws RemoteException {
+        NioFiguresBox box;
+        try {
+            SocketChannel channel = SocketChannel.open(new InetSocketAddress(host, port));
+            channel.socket().setTcpNoDelay(true);
+            box = new NioFiguresBox(channel, host + ":" + port);
+        } catch (IOException e) {
+            throw new ConnectException("Cannot connect to " + host + ":" + port, e);
+        }
+        box.reader.start();
+        try {
+            box.call(NioProtocol.OPEN, out -> out.writeUTF(board));
+        } catch (RemoteException e) {
+            box.close();
+            throw e;
+        }
+        return box;
+    }
+
+    /**
+     * Close the connection, the calls in progress fail
+     */
+    public void close() {
+        this.closed = true;
+        try {
+            this.channel.close();
+        } catch (IOException e) {
+            // closed anyway
+        }
+    }
+
+    /**
+     * Send a request and wait for its response
+     *
+     * @return the payload of the response
+     */
+    private DataInputStream call(byte type, NioProtocol.Payload payload) throws RemoteException {
+        int id = this.lastId.incrementAndGet();
+        if (id == 0) { // 0 is for the requests without response
+            id = this.lastId.incrementAndGet();
+        }
+        CompletableFuture<DataInputStream> response = new CompletableFuture<>();
+        this.calls.put(id, response);
+        try {
+            send(type, id, payload);
+            return response.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof RemoteException ? (RemoteException) e.getCause()
+                    : new RemoteException(e.getCause().getMessage(), e.getCause());
+        } catch (TimeoutException e) {
+            throw new RemoteException("No response from " + this.address);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RemoteException("Interrupted");
+        } finally {
+            this.calls.remove(id);
+        }
+    }
+
+    private void send(byte type, int id, NioProtocol.Payload payload) throws RemoteException {
+        if (this.closed) {
+            throw new ConnectException("Connection to " + this.address + " closed");
+        }
+        try {
+            ByteBuffer frame = NioProtocol.frame(type, id, payload);
+            synchronized (this.channel) {
+                while (frame.hasRemaining()) {
+                    this.channel.write(frame);
+                }
+            }
+        } catch (IOException e) {
+            throw new ConnectException("Connection to " + this.address + " lost", e);
+        }
+    }
+
+    /**
+     * Read the frames, on the reader thread
+     */
+    @Override
+    public void run() {
+        ByteBuffer length = ByteBuffer.allocate(4);
+        try {
+            while (true) {
+                length.clear();
+                readFully(length);
+                int size = length.getInt(0);
+                if (size < NioProtocol.HEADER_SIZE || size > NioProtocol.MAX_FRAME) {
+                    throw new IOException("Invalid frame");
+                }
+                ByteBuffer frame = ByteBuffer.allocate(size);
+                readFully(frame);
+                DataInputStream in = new DataInputStream(new ByteArrayInputStream(frame.array()));
+                dispatch(in.readByte(), in.readInt(), in);
+            }
+        } catch (IOException e) {
+            if (!this.closed) {
+                System.err.println("Connection to " + this.address + " lost: " + e.getMessage());
+            }
+        } finally {
+            this.closed = true;
+            this.calls.values().forEach(call -> call.completeExceptionally(
+                    new ConnectException("Connection to " + this.address + " closed")));
+        }
+    }
+
+    private void readFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (this.channel.read(buffer) < 0) {
+                throw new IOException("Connection closed by the server");
+            }
+        }
+    }
+
+    private void dispatch(byte type, int id, DataInputStream in) throws IOException {
+        switch (type) {
+            case NioProtocol.RESULT: {
+                CompletableFuture<DataInputStream> call = this.calls.get(id);
+                if (call != null) {
+                    call.complete(in);
+                }
+                break;
+            }
+            case NioProtocol.ERROR: {
+                CompletableFuture<DataInputStream> call = this.calls.get(id);
+                if (call != null) {
+                    call.completeExceptionally(new RemoteException(in.readUTF()));
+                }
+                break;
+            }
+            case NioProtocol.EDIT_ALL: {
+                DeltaBatch batch = NioProtocol.readBatch(in);
+                notify(callback -> callback.editAll(batch));
+                break;
+            }
+            case NioProtocol.BOARD_MOVED:
+                notify(Callback::boardMoved);
+                break;
+            case NioProtocol.PING:
+                break;
+            default:
+                throw new IOException("Unknown message " + type);
+        }
+    }
+
+    /**
+     * A call of the callback
+     */
+    private interface Notification {
+        void send(Callback callback) throws RemoteException;
+    }
+
+    private void notify(Notification notification) {
+        this.notifier.execute(() -> {
+            Callback callback = this.callback;
+            if (callback != null) {
+                try {
+                    notification.send(callback);
+                } catch (RemoteException e) {
+                    System.err.println("Change not applied: " + e.getMessage());
+                }
+            }
+        });
+    }
+
+    @Override
+    public boolean addFigure(Figure figure) throws RemoteException {
+        try {
+            return call(NioProtocol.ADD, out -> NioProtocol.writeFigure(out, figure)).readBoolean();
+        } catch (IOException e) {
+            throw new RemoteException("Invalid response", e);
+        }
+    }
+
+    @Override
+    public Figure removeFigure(int id) throws RemoteException {
+        try {
+            return NioProtocol.readOptionalFigure(call(NioProtocol.REMOVE, out -> out.writeInt(id)));
+        } catch (IOException e) {
+            throw new RemoteException("Invalid response", e);
+        }
+    }
+
+    @Override
+    public Figures getFigures() throws RemoteException {
+        try {
+            Figures figures = new Figures();
+            NioProtocol.readFigures(call(NioProtocol.GET_FIGURES, NioProtocol.EMPTY), figures);
+            return figures;
+        } catch (IOException e) {
+            throw new RemoteException("Invalid response", e);
+        }
+    }
+
+    @Override
+    public boolean updateFigure(Figure figure) throws RemoteException {
+        try {
+            return call(NioProtocol.UPDATE, out -> NioProtocol.writeFigure(out, figure)).readBoolean();
+        } catch (IOException e) {
+            throw new RemoteException("Invalid response", e);
+        }
+    }
+
+    @Override
+    public void registerCallback(Callback callback) throws RemoteException {
+        this.callback = callback;
+        call(NioProtocol.REGISTER, NioProtocol.EMPTY);
+    }
+
+    @Override
+    public void unregisterCallback(Callback callback) throws RemoteException {
+        call(NioProtocol.UNREGISTER, NioProtocol.EMPTY);
+        this.callback = null;
+    }
+
+    /**
+     * Sent without waiting for a response
+     */
+    @Override
+    public void dragFigure(int id, double x, double y, double width, double height) throws RemoteException {
+        send(NioProtocol.DRAG, 0, out -> {
+            out.writeInt(id);
+            out.writeDouble(x);
+            out.writeDouble(y);
+            out.writeDouble(width);
+            out.writeDouble(height);
+        });
+    }
+
+    @Override
+    public SnapshotPage getSnapshot(long revision, int offset, int limit) throws RemoteException {
+        try {
+            return NioProtocol.readPage(call(NioProtocol.SNAPSHOT, out -> {
+                out.writeLong(revision);
+                out.writeInt(offset);
+                out.writeInt(limit);
+            }));
+        } catch (IOException e) {
+            throw new RemoteException("Invalid response", e);
+        }
+    }
+
+    @Override
+    public DeltaBatch getChangesSince(long revision) throws RemoteException {
+        try {
+            return NioProtocol.readBatch(call(NioProtocol.CHANGES, out -> out.writeLong(revision)));
+        } catch (IOException e) {
+            throw new RemoteException("Invalid response", e);
+        }
+    }
+
+    @Override
+    public int leaseIds(int count) throws RemoteException {
+        try {
+            return call(NioProtocol.LEASE, out -> out.writeInt(count)).readInt();
+        } catch (IOException e) {
+            throw new RemoteException("Invalid response", e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "NioFiguresBox[" + this.address + "]";
+    }
+}
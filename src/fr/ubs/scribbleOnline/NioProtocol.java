@@ -0,0 +1,243 @@
+package fr.ubs.scribbleOnline;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import fr.ubs.scribble.Figure;
+
+/**
+ * The binary protocol of the socket transport (see {@link NioServer} and {@link NioFiguresBox}).
+ * <p>
+ * Every message is a frame: the length of the rest of the frame (int), the message type (byte),
+ * a request id (int) and the payload. A request gets a {@link #RESULT} or an {@link #ERROR} with
+ * the same request id, unless its id is 0. The server pushes the changes of the board in frames
+ * of id 0. Figures are written as in the journal (see {@link FiguresJournal#writeFigure}), after
+ * their version.
+ * <p>
+ * The socket transport only carries the shapes that have a {@link fr.ubs.scribble.ShapeRegistry}
+ * code: no class named by the other end is ever loaded. The server rejects the figures of the other
+ * shapes with an {@link #ERROR}, and the client skips them; use RMI for the other shapes.
+ */
+final class NioProtocol {
+
+    /** maximum length of a frame */
+    static final int MAX_FRAME = 1 << 24;
+
+    /** length of the frame header, length excluded: type and request id */
+    static final int HEADER_SIZE = 5;
+
+    // requests, see the FiguresBox methods
+    static final byte OPEN = 1;
+    static final byte ADD = 2;
+    static final byte UPDATE = 3;
+    static final byte REMOVE = 4;
+    static final byte DRAG = 5;
+    static final byte GET_FIGURES = 6;
+    static final byte SNAPSHOT = 7;
+    static final byte CHANGES = 8;
+    static final byte LEASE = 9;
+    static final byte REGISTER = 10;
+    static final byte UNREGISTER = 11;
+
+    // responses
+    static final byte RESULT = 20;
+    static final byte ERROR = 21;
+
+    // pushed by the server, see the Callback methods
+    static final byte EDIT_ALL = 30;
+    static final byte BOARD_MOVED = 31;
+    static final byte PING = 32;
+
+    /**
+     * Writes the payload of a frame
+     */
+    interface Payload {
+        void write(DataOutput out) throws IOException;
+    }
+
+    /** an empty payload */
+    static final Payload EMPTY = out -> { };
+
+    private NioProtocol() {
+    }
+
+    /**
+     * Make a frame
+     *
+     * @return the frame, ready to be written
+     */
+    static ByteBuffer frame(byte type, int requestId, Payload payload) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0);
+        out.writeByte(type);
+        out.writeInt(requestId);
+        payload.write(out);
+        ByteBuffer frame = ByteBuffer.wrap(bytes.toByteArray());
+        frame.putInt(0, frame.capacity() - 4);
+        return frame;
+    }
+
+    /**
+     * Write a figure with its version
+     */
+    static void writeFigure(DataOutput out, Figure figure) throws IOException {
+        out.writeLong(figure.getVersion());
+        FiguresJournal.writeFigure(out, figure);
+    }
+
+    /**
+     * @return the figure, null if its shape is not registered
+     */
+    static Figure readFigure(DataInput in) throws IOException {
+        long version = in.readLong();
+        Figure figure = FiguresJournal.readFigure(in, true);
+        if (figure != null) {
+            figure.setVersion(version);
+        }
+        return figure;
+    }
+
+    static void writeDelta(DataOutput out, Delta delta) throws IOException {
+        out.writeByte(delta.getKind().ordinal());
+        out.writeInt(delta.getId());
+        switch (delta.getKind()) {
+            case ADD:
+            case UPDATE:
+                writeFigure(out, delta.getFigure());
+                break;
+            case DRAG:
+                out.writeDouble(delta.getX());
+                out.writeDouble(delta.getY());
+                out.writeDouble(delta.getWidth());
+                out.writeDouble(delta.getHeight());
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * @return the delta, null if its figure has a shape that is not registered
+     */
+    static Delta readDelta(DataInput in) throws IOException {
+        Delta.Kind kind = Delta.Kind.values()[in.readByte()];
+        int id = in.readInt();
+        switch (kind) {
+            case ADD: {
+                Figure figure = readFigure(in);
+                return figure == null ? null : Delta.add(figure);
+            }
+            case UPDATE: {
+                Figure figure = readFigure(in);
+                return figure == null ? null : Delta.update(figure);
+            }
+            case DRAG:
+                return Delta.drag(id, in.readDouble(), in.readDouble(), in.readDouble(), in.readDouble());
+            default:
+                return Delta.remove(id);
+        }
+    }
+
+    /**
+     * Write a batch, or null
+     */
+    static void writeBatch(DataOutput out, DeltaBatch batch) throws IOException {
+        out.writeBoolean(batch != null);
+        if (batch != null) {
+            out.writeLong(batch.getPrevious());
+            out.writeLong(batch.getSequence());
+            out.writeLong(batch.getTime());
+            out.writeInt(batch.getDeltas().size());
+            for (Delta delta : batch.getDeltas()) {
+                writeDelta(out, delta);
+            }
+        }
+    }
+
+    static DeltaBatch readBatch(DataInput in) throws IOException {
+        if (!in.readBoolean()) {
+            return null;
+        }
+        long previous = in.readLong();
+        long sequence = in.readLong();
+        long time = in.readLong();
+        int count = in.readInt();
+        List<Delta> deltas = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            Delta delta = readDelta(in);
+            if (delta != null) {
+                deltas.add(delta);
+            }
+        }
+        return new DeltaBatch(previous, sequence, deltas, time);
+    }
+
+    /**
+     * Write a figure, or null
+     */
+    static void writeOptionalFigure(DataOutput out, Figure figure) throws IOException {
+        out.writeBoolean(figure != null);
+        if (figure != null) {
+            writeFigure(out, figure);
+        }
+    }
+
+    static Figure readOptionalFigure(DataInput in) throws IOException {
+        return in.readBoolean() ? readFigure(in) : null;
+    }
+
+    static void writeFigures(DataOutput out, List<Figure> figures) throws IOException {
+        out.writeInt(figures.size());
+        for (Figure figure : figures) {
+            writeFigure(out, figure);
+        }
+    }
+
+    /**
+     * Read figures into a list, skipping the figures whose shape is not registered
+     *
+     * @return the number of figures read, skipped ones included
+     */
+    static int readFigures(DataInput in, List<Figure> figures) throws IOException {
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            Figure figure = readFigure(in);
+            if (figure != null) {
+                figures.add(figure);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Write a snapshot page, or null
+     */
+    static void writePage(DataOutput out, SnapshotPage page) throws IOException {
+        out.writeBoolean(page != null);
+        if (page != null) {
+            out.writeLong(page.getRevision());
+            out.writeInt(page.getOffset());
+            out.writeInt(page.getTotal());
+            writeFigures(out, page.getFigures());
+        }
+    }
+
+    static SnapshotPage readPage(DataInput in) throws IOException {
+        if (!in.readBoolean()) {
+            return null;
+        }
+        long revision = in.readLong();
+        int offset = in.readInt();
+        int total = in.readInt();
+        List<Figure> figures = new ArrayList<>();
+        int count = readFigures(in, figures);
+        return new SnapshotPage(revision, offset, total, figures, offset + count);
+    }
+}
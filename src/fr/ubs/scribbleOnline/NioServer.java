@@ -0,0 +1,131 @@
+package fr.ubs.scribbleOnline;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Serves the boards over plain sockets, with the protocol of {@link NioProtocol}: one connection
+ * per client, carrying its requests and the changes pushed to it. A single selector thread reads
+ * and writes all the connections without blocking. The requests are handled by worker threads,
+ * the requests of a connection always by the same worker, so they are handled in order.
+ */
+public class NioServer implements Runnable {
+
+    private final BoardDirectoryImpl boards;
+    private final ServerSocketChannel server;
+    private final Selector selector;
+    private final Thread thread;
+    private final ExecutorService[] workers;
+
+    /**
+     * the connections that have frames waiting to be written
+     */
+    private final Queue<NioConnection> writers = new ConcurrentLinkedQueue<>();
+    private int lastId;
+
+    /**
+     * Constructor, binds the server socket
+     *
+     * @param port    the port to listen on
+     * @param boards  the boards to be served
+     * @param workers the number of worker threads
+     */
+    public NioServer(int port, BoardDirectoryImpl boards, int workers) throws IOException {
+        this.boards = boards;
+        this.selector = Selector.open();
+        this.server = ServerSocketChannel.open();
+        this.server.bind(new InetSocketAddress(port));
+        this.server.configureBlocking(false);
+        this.server.register(this.selector, SelectionKey.OP_ACCEPT);
+        this.workers = new ExecutorService[workers];
+        for (int i = 0; i < workers; i++) {
+            String name = "nio-worker-" + i;
+            this.workers[i] = Executors.newSingleThreadExecutor(r -> {
+                Thread thread = new Thread(r, name);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        this.thread = new Thread(this, "nio-selector");
+        this.thread.setDaemon(true);
+    }
+
+    public void start() {
+        this.thread.start();
+    }
+
+    BoardDirectoryImpl getBoards() {
+        return boards;
+    }
+
+    /**
+     * Write the frames of a connection as soon as its channel can be written
+     */
+    void requestWrite(NioConnection connection) {
+        this.writers.add(connection);
+        this.selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        while (this.server.isOpen()) {
+            try {
+                this.selector.select();
+                NioConnection writer;
+                while ((writer = this.writers.poll()) != null) {
+                    writer.enableWrite();
+                }
+                Iterator<SelectionKey> keys = this.selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    NioConnection connection = (NioConnection) key.attachment();
+                    if (key.isReadable()) {
+                        connection.read();
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        connection.write();
+                    }
+                }
+            } catch (IOException e) {
+                ServerLog.error("Socket server: %s", e.getMessage());
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = this.server.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        int id = ++this.lastId;
+        NioConnection connection = new NioConnection(this, channel, this.workers[id % this.workers.length]);
+        connection.setKey(channel.register(this.selector, SelectionKey.OP_READ, connection));
+    }
+
+    /**
+     * Stop accepting connections
+     */
+    public void close() throws IOException {
+        this.server.close();
+        this.selector.wakeup();
+    }
+}
@@ -1,6 +1,7 @@
 package fr.ubs.scribbleOnline;
 
 import java.net.MalformedURLException;
+import java.rmi.NotBoundException;
 import java.rmi.Remote;
 import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
@@ -8,19 +9,82 @@ import java.rmi.registry.Registry;
 import java.rmi.server.RMIClassLoader;
 import java.rmi.server.UnicastRemoteObject;
 import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
+import fr.ubs.scribble.Figure;
+import fr.ubs.scribble.Figures;
 import fr.ubs.scribble.FiguresCanvas;
 import fr.ubs.scribble.ScribbleFrame;
 
 
 public class ScribbleClient {
+    /**
+     * number of figures downloaded per remote call when joining a board
+     */
+    static final int PAGE_SIZE = 500;
+
+    /**
+     * system property that enables the live drag mode: the other users see figures while they are dragged
+     */
+    static final String LIVE_DRAG_PROPERTY = "scribble.liveDrag";
+
+    /**
+     * system property selecting the transport: "rmi" (default) or "nio" for the socket transport,
+     * the port is then the port of the socket transport
+     */
+    static final String TRANSPORT_PROPERTY = "scribble.transport";
+
+    /**
+     * maximum time to wait for the edits not sent yet when the client quits
+     */
+    static final long EXIT_TIMEOUT_MILLIS = 2000;
+
     String host;
     int port;
     ScribbleFrame frame;
     Registry registry;
     FiguresBox figuresBox;
+    /**
+     * the board as opened, without the recording of its calls
+     */
+    FiguresBox opened;
     FiguresCanvas canvas;
     String url;
+    /**
+     * the name of the board, null for the default board
+     */
+    String board;
+    /**
+     * the revision of the board the local figures are at
+     */
+    volatile long revision;
+    /**
+     * sends the figures being dragged, null if the live drag mode is disabled
+     */
+    DragStreamer dragStreamer;
+    /**
+     * receives the changes of the board, null until registered
+     */
+    CallbackImpl callback;
+    /**
+     * gives the ids of the figures created by this client
+     */
+    IdLease idLease;
+    /**
+     * sends the edits of the user in the background
+     */
+    EditSender editSender;
+    /**
+     * the writer id of the versions given to the figures edited by this client
+     */
+    final int writer = ThreadLocalRandom.current().nextInt();
+    /**
+     * the paint times, the calls of the board and the sync lag
+     */
+    final ClientMetrics metrics = new ClientMetrics();
 
 
     public FiguresCanvas getCanvas() {
@@ -31,8 +95,176 @@ public class ScribbleClient {
         return figuresBox;
     }
 
-    public void setFiguresBox(FiguresBox figuresBox) {
+    public IdLease getIdLease() {
+        return idLease;
+    }
+
+    public ClientMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Use a board opened with {@link #openBoard()}, its calls are recorded in the metrics
+     */
+    public void setFiguresBox(FiguresBox opened) {
+        if (this.opened instanceof NioFiguresBox && this.opened != opened) {
+            ((NioFiguresBox) this.opened).close();
+        }
+        this.opened = opened;
+        FiguresBox figuresBox = this.metrics.instrument(opened);
         this.figuresBox = figuresBox;
+        if (this.dragStreamer != null) {
+            this.dragStreamer.setFiguresBox(figuresBox);
+        }
+        if (this.idLease != null) {
+            this.idLease.setFiguresBox(figuresBox);
+        }
+        if (this.editSender != null) {
+            this.editSender.setFiguresBox(figuresBox);
+        }
+    }
+
+    /**
+     * Open the board from the board directory of the server, which gives the board of the server
+     * that owns it when several servers share the boards
+     *
+     * @return the board
+     */
+    public FiguresBox openBoard() throws RemoteException, NotBoundException {
+        if ("nio".equals(System.getProperty(TRANSPORT_PROPERTY))) {
+            return NioFiguresBox.open(this.host, this.port, this.board == null ? BoardDirectoryImpl.DEFAULT_BOARD : this.board);
+        }
+        BoardDirectory boards = (BoardDirectory) this.registry.lookup("Boards");
+        return boards.openBoard(this.board == null ? BoardDirectoryImpl.DEFAULT_BOARD : this.board);
+    }
+
+    /**
+     * Send the intermediate state of a figure being dragged, if the live drag mode is enabled
+     */
+    public void streamDrag(Figure figure) {
+        if (this.dragStreamer != null) {
+            this.dragStreamer.offer(figure);
+        }
+    }
+
+    /**
+     * Stop sending the intermediate states of the figure being dragged, before its final state is sent
+     */
+    public void cancelDrag() {
+        if (this.dragStreamer != null) {
+            this.dragStreamer.cancel();
+        }
+    }
+
+    /**
+     * Hold the changes of a figure received from the server while the user moves or resizes it
+     */
+    public void holdFigure(Figure figure) {
+        if (this.callback != null) {
+            this.callback.hold(figure.getId());
+        }
+    }
+
+    /**
+     * Stop holding the changes of a figure, once the user has released it and its edit if any has been sent
+     */
+    public void releaseFigure(Figure figure) {
+        if (this.callback != null) {
+            this.callback.release(figure.getId());
+        }
+    }
+
+    /**
+     * Send a figure added to the local figures, in the background. Must be called on the event
+     * dispatch thread, like the other edit methods.
+     *
+     * @param figure the figure added, null if none was (e.g. an empty figure)
+     */
+    public void addFigure(Figure figure) {
+        if (figure == null) {
+            return;
+        }
+        figure.nextVersion(this.writer);
+        submit(Delta.add(figure.copy()));
+    }
+
+    /**
+     * Send the new state of a local figure, in the background
+     */
+    public void updateFigure(Figure figure) {
+        figure.nextVersion(this.writer);
+        submit(Delta.update(figure.copy()));
+    }
+
+    /**
+     * Remove a figure from the board, in the background, once it has been removed from the local figures
+     */
+    public void removeFigure(Figure figure) {
+        if (this.callback != null) {
+            this.callback.bury(figure.getId());
+        }
+        submit(Delta.remove(figure.getId()));
+    }
+
+    private void submit(Delta edit) {
+        if (this.callback != null) {
+            this.callback.editing(edit.getId());
+        }
+        if (this.dragStreamer != null) { // after the drag sample being sent, if any
+            this.dragStreamer.execute(() -> this.editSender.submit(edit));
+        } else {
+            this.editSender.submit(edit);
+        }
+    }
+
+    /**
+     * Stop being notified of the changes of the board, when the client quits
+     */
+    public void unregister() {
+        if (this.dragStreamer != null) {
+            try {
+                this.dragStreamer.execute(() -> { }).get(EXIT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException | ExecutionException | TimeoutException e) {
+                System.err.println("Edits not submitted: " + e);
+            }
+        }
+        this.editSender.awaitSent(EXIT_TIMEOUT_MILLIS);
+        try {
+            this.figuresBox.unregisterCallback(this.callback);
+        } catch (RemoteException e) {
+            System.err.println("Callback not unregistered: " + e.getMessage());
+        }
+    }
+
+    public long getRevision() {
+        return revision;
+    }
+
+    public void setRevision(long revision) {
+        this.revision = revision;
+    }
+
+    /**
+     * Download a snapshot of the board page by page, and remember its revision
+     *
+     * @return the figures of the board
+     */
+    public Figures loadFigures() throws RemoteException {
+        while (true) {
+            Figures figures = new Figures();
+            SnapshotPage page = this.figuresBox.getSnapshot(-1, 0, PAGE_SIZE);
+            figures.addAll(page.getFigures());
+            while (page != null && page.hasMore()) {
+                page = this.figuresBox.getSnapshot(page.getRevision(), page.getNextOffset(), PAGE_SIZE);
+                if (page != null) {
+                    figures.addAll(page.getFigures());
+                }
+            }
+            if (page != null) { // else the snapshot expired while downloading, start again
+                this.revision = page.getRevision();
+                return figures;
+            }
+        }
     }
 
     public static void main(String[] args) throws NumberFormatException, RemoteException, InstantiationException, IllegalAccessException, MalformedURLException, ClassNotFoundException {
@@ -43,15 +275,28 @@ public class ScribbleClient {
         this.canvas = canvas;
     }
     public ScribbleClient(String host_, int port_,String url_) throws RemoteException, InstantiationException, IllegalAccessException, MalformedURLException, ClassNotFoundException {
+        this(host_, port_, url_, null);
+    }
+    /**
+     * @param board_ the name of the board, null for the default board
+     */
+    public ScribbleClient(String host_, int port_,String url_, String board_) throws RemoteException, InstantiationException, IllegalAccessException, MalformedURLException, ClassNotFoundException {
         this.host = host_;
         this.port = port_;
         this.url = url_;
+        this.board = board_;
         this.registry = LocateRegistry.getRegistry(this.host, this.port);
         
    
 
+        this.metrics.register();
         try {
-            this.figuresBox = (FiguresBox) registry.lookup("FiguresBox");
+            setFiguresBox(openBoard());
+            this.idLease = new IdLease(this.figuresBox, IdLease.BLOCK_SIZE);
+            this.editSender = new EditSender(this.figuresBox);
+            if (Boolean.getBoolean(LIVE_DRAG_PROPERTY)) {
+                this.dragStreamer = new DragStreamer(this.figuresBox);
+            }
         } catch (Exception e) {
             e.printStackTrace();
         }
@@ -68,24 +313,32 @@ public class ScribbleClient {
     }
 
     public static void testLaunch(String[] args) throws NumberFormatException, RemoteException, InstantiationException, IllegalAccessException, MalformedURLException, ClassNotFoundException {
-        if (Arrays.asList(args).contains("-h") || Arrays.asList(args).contains("--help") || args.length != 2
-                || !args[1].matches("[0-9]+")) {
+        if (Arrays.asList(args).contains("-h") || Arrays.asList(args).contains("--help") || args.length < 2
+                || args.length > 3 || !args[1].matches("[0-9]+")) {
             printUsage();
         }
         //si classpath possede triangle 
         String url ="";
         
       
-        ScribbleClient client = new ScribbleClient(args[0], Integer.parseInt(args[1]),url);
-        client.figuresBox.registerCallback(new CallbackImpl(client));
+        ScribbleClient client = new ScribbleClient(args[0], Integer.parseInt(args[1]),url, args.length > 2 ? args[2] : null);
+        client.callback = new CallbackImpl(client);
+        client.editSender.setListener(client.callback);
+        client.figuresBox.registerCallback(client.callback);
+        Runtime.getRuntime().addShutdownHook(new Thread(client::unregister));
     }
 
     public static void printUsage() {
         System.out
-                .println("Usage: java -cp Client.jar:triangles.jar -Djava.java.rmi.server.codebase=\"http://people.irisa.fr/Pascale.Launay/pub/triangle.jar\" fr.ubs.scribbleOnline.ScribbleClient <host> <port>");
+                .println("Usage: java -cp Client.jar:triangles.jar -Djava.java.rmi.server.codebase=\"http://people.irisa.fr/Pascale.Launay/pub/triangle.jar\" fr.ubs.scribbleOnline.ScribbleClient <host> <port> [<board>]");
         System.err.println("With: ");
         System.out.println("\thost: host name of the client");
         System.out.println("\tport: port number of the server");
+        System.out.println("\tboard: name of the board, created if it does not exist (default board if omitted)");
+        System.out.println("Options: ");
+        System.out.println("\t-D" + LIVE_DRAG_PROPERTY + "=true: show the figures to the other users while they are dragged");
+        System.out.println("\t-D" + TRANSPORT_PROPERTY + "=nio: use the socket transport of the server, port is then its socket port (registered shapes only)");
+        System.out.println("\t-D" + ClientMetrics.OVERLAY_PROPERTY + "=true: show the paint times, the calls of the board and the sync lag over the figures");
         System.exit(-1);
     }
 }
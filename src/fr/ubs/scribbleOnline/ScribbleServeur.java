@@ -1,44 +1,113 @@
 package fr.ubs.scribbleOnline;
 
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.rmi.Remote;
 import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
+import java.rmi.server.RMISocketFactory;
 import java.rmi.server.RemoteServer;
 import java.rmi.server.UnicastRemoteObject;
+import java.util.Arrays;
 import java.util.List;
 
 
 
 
 public class ScribbleServeur extends RemoteServer{
+    /**
+     * system property giving the servers sharing the boards, "host:port" separated by commas
+     */
+    static final String NODES_PROPERTY = "scribble.nodes";
+
+    /**
+     * system property giving one of the servers sharing the boards, that this server joins
+     */
+    static final String JOIN_PROPERTY = "scribble.join";
+
+    /**
+     * system property giving the "host:port" of this server, as known by the other servers
+     */
+    static final String NODE_PROPERTY = "scribble.node";
+
+    /**
+     * system property giving the port of the socket transport (see {@link NioServer}), disabled if not set
+     */
+    static final String NIO_PORT_PROPERTY = "scribble.nioPort";
+
     private int port;
-    private FiguresBox figuresBox;
+    private BoardDirectoryImpl boards;
     private Remote stub;
     private Registry registry;
     private List<Callback> callbacks;
-    public static void main(String[] args) throws NumberFormatException, RemoteException {
+    public static void main(String[] args) throws NumberFormatException, IOException {
         testlaunch(args);
 
     }
-    public static void testlaunch(String[] args) throws NumberFormatException, RemoteException{
-        if (args.length != 1 || args[0].equals("-h") || args[0].equals("--help") || !args[0].matches("[0-9]+")) {
+    public static void testlaunch(String[] args) throws NumberFormatException, IOException{
+        if (args.length < 1 || args.length > 2 || args[0].equals("-h") || args[0].equals("--help") || !args[0].matches("[0-9]+")) {
             printUsage();   
         }
-        ScribbleServeur serveur = new ScribbleServeur(Integer.parseInt(args[0]));
+        ScribbleServeur serveur = new ScribbleServeur(Integer.parseInt(args[0]), args.length > 1 ? Paths.get(args[1]) : null);
+    }
+    public ScribbleServeur(int port) throws IOException{
+        this(port, null);
     }
-    public ScribbleServeur(int port) throws RemoteException{
+    /**
+     * @param dataDir the directory where the boards are saved, null to keep them only in memory
+     */
+    public ScribbleServeur(int port, Path dataDir) throws IOException{
         this.port = port;
-        this.figuresBox = new FiguresBoxImpl(); 
-        this.stub = UnicastRemoteObject.exportObject(figuresBox, this.port);
+        if (RMISocketFactory.getSocketFactory() == null) {
+            RMISocketFactory.setSocketFactory(new CountingSocketFactory(ServerMetrics.SERVER));
+        }
+        String nodes = System.getProperty(NODES_PROPERTY);
+        String join = System.getProperty(JOIN_PROPERTY);
+        String self = System.getProperty(NODE_PROPERTY, "localhost:" + port);
+        int workers = Runtime.getRuntime().availableProcessors();
+        if (nodes == null && join == null) {
+            this.boards = new BoardDirectoryImpl(this.port, dataDir, workers);
+        } else if (dataDir == null) {
+            throw new IllegalArgumentException("The servers sharing the boards need a shared data directory");
+        } else {
+            this.boards = new BoardDirectoryImpl(this.port, dataDir, workers, self,
+                    nodes == null ? null : new BoardRing(Arrays.asList(nodes.split(","))));
+        }
+        if (dataDir != null) {
+            Runtime.getRuntime().addShutdownHook(new Thread(this.boards::close));
+        }
+        ServerMetrics.SERVER.start(this.boards);
+        this.stub = UnicastRemoteObject.exportObject(boards, this.port);
         this.registry = LocateRegistry.createRegistry(this.port);
-        this.registry.rebind("FiguresBox", this.stub);
-        System.out.println("Serveur is ready on port "+this.port);
+        this.registry.rebind("Boards", this.stub);
+        if (nodes == null && join == null) {
+            // the board of the clients that do not use the board directory
+            this.registry.rebind("FiguresBox", this.boards.openBoard(BoardDirectoryImpl.DEFAULT_BOARD));
+        } else if (join != null) {
+            this.boards.join(join);
+        }
+        if (Integer.getInteger(NIO_PORT_PROPERTY) != null) {
+            new NioServer(Integer.getInteger(NIO_PORT_PROPERTY), this.boards, workers).start();
+            ServerLog.info("Socket transport is ready on port %d", Integer.getInteger(NIO_PORT_PROPERTY));
+        }
+        ServerLog.info("Serveur is ready on port %d", this.port);
     }
     public static void printUsage(){
-        System.out.println("Usage: java -jar Serveur.jar <port> ");
+        System.out.println("Usage: java -jar Serveur.jar <port> [<data directory>]");
         System.err.println("With: ");
         System.out.println("\tport: port number to listen on");
+        System.out.println("\tdata directory: directory where the boards are saved (in memory only if omitted)");
+        System.out.println("Options: ");
+        System.out.println("\t-D" + NODES_PROPERTY + "=<host:port>,...: servers sharing the boards, this one included");
+        System.out.println("\t-D" + JOIN_PROPERTY + "=<host:port>: one of the servers sharing the boards, to be joined");
+        System.out.println("\t-D" + NODE_PROPERTY + "=<host:port>: this server, as known by the others (localhost:<port> by default)");
+        System.out.println("\tThe servers sharing the boards must share the data directory");
+        System.out.println("\t-D" + NIO_PORT_PROPERTY + "=<port>: also serve the boards with the socket transport on this port");
+        System.out.println("\t-D" + ServerLog.LEVEL_PROPERTY + "=<level>: lowest level logged, DEBUG to log every edit (INFO by default)");
+        System.out.println("\t-D" + ServerMetrics.PERIOD_PROPERTY + "=<seconds>: period of the metrics logged, 0 to disable them (60 by default)");
+        System.out.println("\tThe metrics are also exposed over JMX as " + ServerMetrics.OBJECT_NAME);
         System.exit(-1);
     }
 }
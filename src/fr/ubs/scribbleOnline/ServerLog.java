@@ -0,0 +1,111 @@
+package fr.ubs.scribbleOnline;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The log of the server, on the standard output, or the error output for warnings and errors.
+ * Messages below the level given by the {@link #LEVEL_PROPERTY} system property are skipped
+ * before being formatted. Each message format is logged at most {@link #MAX_PER_SECOND} times
+ * per second: the messages beyond are counted and the count is logged with the next message of
+ * the same format, so a flood of messages cannot slow the server down.
+ */
+public final class ServerLog {
+
+    /**
+     * system property giving the lowest level logged: DEBUG, INFO (default), WARN or ERROR
+     */
+    static final String LEVEL_PROPERTY = "scribble.logLevel";
+
+    /**
+     * maximum number of messages of the same format logged per second
+     */
+    static final int MAX_PER_SECOND = 10;
+
+    public enum Level {
+        DEBUG, INFO, WARN, ERROR
+    }
+
+    private static volatile Level level = Level.valueOf(System.getProperty(LEVEL_PROPERTY, Level.INFO.name()));
+
+    /**
+     * the number of messages logged and suppressed in the current second, by format
+     */
+    private static final Map<String, Limit> LIMITS = new ConcurrentHashMap<>();
+
+    private static class Limit {
+        private long second;
+        private int logged;
+        private long suppressed;
+
+        /**
+         * @return the number of messages suppressed since the last one logged, -1 if this one must be suppressed
+         */
+        synchronized long acquire(long now) {
+            if (now / 1000 != this.second) {
+                this.second = now / 1000;
+                this.logged = 0;
+            }
+            if (this.logged >= MAX_PER_SECOND) {
+                this.suppressed++;
+                return -1;
+            }
+            this.logged++;
+            long suppressed = this.suppressed;
+            this.suppressed = 0;
+            return suppressed;
+        }
+    }
+
+    private ServerLog() {
+    }
+
+    public static Level getLevel() {
+        return level;
+    }
+
+    public static void setLevel(Level level) {
+        ServerLog.level = level;
+    }
+
+    public static boolean isEnabled(Level level) {
+        return level.compareTo(ServerLog.level) >= 0;
+    }
+
+    public static void debug(String format, Object... args) {
+        log(Level.DEBUG, format, args);
+    }
+
+    public static void info(String format, Object... args) {
+        log(Level.INFO, format, args);
+    }
+
+    public static void warn(String format, Object... args) {
+        log(Level.WARN, format, args);
+    }
+
+    public static void error(String format, Object... args) {
+        log(Level.ERROR, format, args);
+    }
+
+    /**
+     * Log a message, unless its level is disabled or its format was logged too often
+     *
+     * @param format the message, see {@link String#format(String, Object...)}
+     */
+    public static void log(Level level, String format, Object... args) {
+        if (!isEnabled(level)) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        long suppressed = LIMITS.computeIfAbsent(format, key -> new Limit()).acquire(now);
+        if (suppressed < 0) {
+            return;
+        }
+        String message = String.format("%tT.%<tL %-5s %s", now, level, String.format(format, args));
+        if (suppressed > 0) {
+            message += " (" + suppressed + " similar messages suppressed)";
+        }
+        (level.compareTo(Level.WARN) >= 0 ? System.err : System.out).println(message);
+    }
+}
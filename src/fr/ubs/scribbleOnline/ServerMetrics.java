@@ -0,0 +1,373 @@
+package fr.ubs.scribbleOnline;
+
+import java.beans.ConstructorProperties;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * The metrics of the server: the number and duration of the calls of the board methods, the
+ * duration of the calls sending the changes to the clients, the bytes received and sent, and the
+ * size and clients of the loaded boards. They are exposed as an MXBean, and summed up in the log
+ * every {@link #PERIOD_PROPERTY} seconds, for the period only.
+ */
+public class ServerMetrics implements ServerMetricsMXBean {
+
+    /**
+     * the name of the MXBean
+     */
+    public static final String OBJECT_NAME = "fr.ubs.scribbleOnline:type=ServerMetrics";
+
+    /**
+     * system property giving the period of the metrics logged, in seconds, 0 to disable them
+     */
+    static final String PERIOD_PROPERTY = "scribble.metricsSeconds";
+
+    /**
+     * the metrics of this server
+     */
+    public static final ServerMetrics SERVER = new ServerMetrics();
+
+    /**
+     * The measured methods of the boards
+     */
+    public enum Call {
+        ADD_FIGURE("addFigure"),
+        REMOVE_FIGURE("removeFigure"),
+        UPDATE_FIGURE("updateFigure"),
+        DRAG_FIGURE("dragFigure"),
+        GET_FIGURES("getFigures"),
+        GET_SNAPSHOT("getSnapshot"),
+        GET_CHANGES_SINCE("getChangesSince"),
+        LEASE_IDS("leaseIds"),
+        REGISTER_CALLBACK("registerCallback"),
+        UNREGISTER_CALLBACK("unregisterCallback");
+
+        private final String method;
+
+        Call(String method) {
+            this.method = method;
+        }
+
+        public String getMethod() {
+            return method;
+        }
+    }
+
+    /**
+     * The number and duration of calls
+     */
+    public static class CallStats {
+        private final String name;
+        private final long count;
+        private final double mean;
+        private final double p50;
+        private final double p99;
+        private final double max;
+
+        @ConstructorProperties({"name", "count", "mean", "p50", "p99", "max"})
+        public CallStats(String name, long count, double mean, double p50, double p99, double max) {
+            this.name = name;
+            this.count = count;
+            this.mean = mean;
+            this.p50 = p50;
+            this.p99 = p99;
+            this.max = max;
+        }
+
+        static CallStats of(String name, LatencyHistogram histogram) {
+            return new CallStats(name, histogram.getCount(), histogram.getMean() / 1e6,
+                    histogram.getValueAtPercentile(50) / 1e6, histogram.getValueAtPercentile(99) / 1e6,
+                    histogram.getMax() / 1e6);
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public double getMean() {
+            return mean;
+        }
+
+        public double getP50() {
+            return p50;
+        }
+
+        public double getP99() {
+            return p99;
+        }
+
+        public double getMax() {
+            return max;
+        }
+    }
+
+    /**
+     * The size and number of clients of a board
+     */
+    public static class BoardStats {
+        private final String name;
+        private final int figures;
+        private final int clients;
+
+        @ConstructorProperties({"name", "figures", "clients"})
+        public BoardStats(String name, int figures, int clients) {
+            this.name = name;
+            this.figures = figures;
+            this.clients = clients;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int getFigures() {
+            return figures;
+        }
+
+        public int getClients() {
+            return clients;
+        }
+    }
+
+    /**
+     * The outbound queue of a client, and the duration of the calls sending it the changes
+     */
+    public static class ClientStats {
+        private final String board;
+        private final String client;
+        private final int depth;
+        private final long dropped;
+        private final long failed;
+        private final CallStats calls;
+
+        @ConstructorProperties({"board", "client", "depth", "dropped", "failed", "calls"})
+        public ClientStats(String board, String client, int depth, long dropped, long failed, CallStats calls) {
+            this.board = board;
+            this.client = client;
+            this.depth = depth;
+            this.dropped = dropped;
+            this.failed = failed;
+            this.calls = calls;
+        }
+
+        public String getBoard() {
+            return board;
+        }
+
+        public String getClient() {
+            return client;
+        }
+
+        public int getDepth() {
+            return depth;
+        }
+
+        public long getDropped() {
+            return dropped;
+        }
+
+        public long getFailed() {
+            return failed;
+        }
+
+        public CallStats getCalls() {
+            return calls;
+        }
+    }
+
+    private final LatencyHistogram[] calls = new LatencyHistogram[Call.values().length];
+    private final LatencyHistogram fanOut = new LatencyHistogram();
+    private final AtomicLong bytesReceived = new AtomicLong();
+    private final AtomicLong bytesSent = new AtomicLong();
+
+    /**
+     * the metrics of the current period of the log
+     */
+    private final LatencyHistogram[] periodCalls = new LatencyHistogram[Call.values().length];
+    private final LatencyHistogram periodFanOut = new LatencyHistogram();
+    private long periodBytesReceived;
+    private long periodBytesSent;
+
+    private volatile BoardDirectoryImpl boards;
+
+    ServerMetrics() {
+        for (int i = 0; i < this.calls.length; i++) {
+            this.calls[i] = new LatencyHistogram();
+            this.periodCalls[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * Record the duration of a call of a board method
+     *
+     * @param call  the method
+     * @param start the value of {@link System#nanoTime()} when the method was called
+     */
+    public void record(Call call, long start) {
+        long duration = System.nanoTime() - start;
+        this.calls[call.ordinal()].record(duration);
+        this.periodCalls[call.ordinal()].record(duration);
+    }
+
+    /**
+     * Record the duration of a call sending changes to a client
+     */
+    public void recordFanOut(long nanos) {
+        this.fanOut.record(nanos);
+        this.periodFanOut.record(nanos);
+    }
+
+    public void addBytesReceived(long bytes) {
+        this.bytesReceived.addAndGet(bytes);
+    }
+
+    public void addBytesSent(long bytes) {
+        this.bytesSent.addAndGet(bytes);
+    }
+
+    /**
+     * Register the MXBean and start logging the metrics periodically
+     *
+     * @param boards the boards of the server
+     */
+    public void start(BoardDirectoryImpl boards) {
+        this.boards = boards;
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(OBJECT_NAME));
+        } catch (JMException e) {
+            ServerLog.warn("Metrics not registered: %s", e.getMessage());
+        }
+        long period = Long.getLong(PERIOD_PROPERTY, 60);
+        if (period > 0) {
+            ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "metrics-reporter");
+                thread.setDaemon(true);
+                return thread;
+            });
+            reporter.scheduleAtFixedRate(() -> report(period), period, period, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Log the metrics of the period that ends, and start a new period
+     */
+    void report(long seconds) {
+        StringBuilder line = new StringBuilder();
+        line.append(String.format("boards %d, figures %d, clients %d", getBoardCount(), getFigureCount(), getClientCount()));
+        for (Call call : Call.values()) {
+            LatencyHistogram histogram = this.periodCalls[call.ordinal()];
+            if (histogram.getCount() > 0) {
+                line.append(String.format(", %s %.1f/s p99 %.2f ms", call.getMethod(),
+                        (double) histogram.getCount() / seconds, histogram.getValueAtPercentile(99) / 1e6));
+            }
+            histogram.reset();
+        }
+        if (this.periodFanOut.getCount() > 0) {
+            line.append(String.format(", fan-out %.1f/s p99 %.2f ms", (double) this.periodFanOut.getCount() / seconds,
+                    this.periodFanOut.getValueAtPercentile(99) / 1e6));
+        }
+        this.periodFanOut.reset();
+        long received = this.bytesReceived.get();
+        long sent = this.bytesSent.get();
+        line.append(String.format(", received %d KB/s, sent %d KB/s", (received - this.periodBytesReceived) / 1024 / seconds,
+                (sent - this.periodBytesSent) / 1024 / seconds));
+        this.periodBytesReceived = received;
+        this.periodBytesSent = sent;
+        ServerLog.info("%s", line);
+    }
+
+    private Map<String, FiguresBoxImpl> getLoadedBoards() {
+        BoardDirectoryImpl boards = this.boards;
+        return boards == null ? Map.of() : boards.getLoadedBoards();
+    }
+
+    @Override
+    public List<CallStats> getCalls() {
+        List<CallStats> stats = new ArrayList<>();
+        for (Call call : Call.values()) {
+            stats.add(CallStats.of(call.getMethod(), this.calls[call.ordinal()]));
+        }
+        return stats;
+    }
+
+    @Override
+    public CallStats getFanOut() {
+        return CallStats.of("fanOut", this.fanOut);
+    }
+
+    @Override
+    public List<BoardStats> getBoards() {
+        List<BoardStats> stats = new ArrayList<>();
+        getLoadedBoards().forEach((name, box) -> stats.add(new BoardStats(name, box.getFigureCount(),
+                box.getCallbackQueues().size())));
+        return stats;
+    }
+
+    @Override
+    public List<ClientStats> getClients() {
+        List<ClientStats> stats = new ArrayList<>();
+        getLoadedBoards().forEach((name, box) -> {
+            for (CallbackQueue queue : box.getCallbackQueues()) {
+                stats.add(new ClientStats(name, queue.getCallback().toString(), queue.getDepth(), queue.getDropped(),
+                        queue.getFailed(), CallStats.of("editAll", queue.getCalls())));
+            }
+        });
+        return stats;
+    }
+
+    @Override
+    public int getBoardCount() {
+        return getLoadedBoards().size();
+    }
+
+    @Override
+    public long getFigureCount() {
+        return getLoadedBoards().values().stream().mapToLong(FiguresBoxImpl::getFigureCount).sum();
+    }
+
+    @Override
+    public int getClientCount() {
+        return getLoadedBoards().values().stream().mapToInt(box -> box.getCallbackQueues().size()).sum();
+    }
+
+    @Override
+    public long getBytesReceived() {
+        return this.bytesReceived.get();
+    }
+
+    @Override
+    public long getBytesSent() {
+        return this.bytesSent.get();
+    }
+
+    @Override
+    public String getLogLevel() {
+        return ServerLog.getLevel().name();
+    }
+
+    @Override
+    public void setLogLevel(String level) {
+        ServerLog.setLevel(ServerLog.Level.valueOf(level));
+    }
+
+    @Override
+    public void reset() {
+        for (LatencyHistogram histogram : this.calls) {
+            histogram.reset();
+        }
+        this.fanOut.reset();
+    }
+}
@@ -0,0 +1,56 @@
+package fr.ubs.scribbleOnline;
+
+import java.util.List;
+
+/**
+ * The metrics of the server, registered in the platform MBean server as
+ * {@value ServerMetrics#OBJECT_NAME}. The durations are in milliseconds.
+ */
+public interface ServerMetricsMXBean {
+
+    /**
+     * @return the number and duration of the calls of each board method, all boards together,
+     * from the start of the method to its end: the time spent by the transport is not included
+     */
+    List<ServerMetrics.CallStats> getCalls();
+
+    /**
+     * @return the duration of the calls sending the changes to the clients, all clients together
+     */
+    ServerMetrics.CallStats getFanOut();
+
+    /**
+     * @return the size and the number of clients of each loaded board
+     */
+    List<ServerMetrics.BoardStats> getBoards();
+
+    /**
+     * @return the state of the outbound queue of each client, and the duration of its calls
+     */
+    List<ServerMetrics.ClientStats> getClients();
+
+    int getBoardCount();
+
+    long getFigureCount();
+
+    int getClientCount();
+
+    /**
+     * @return the number of bytes received from the clients and the other servers
+     */
+    long getBytesReceived();
+
+    /**
+     * @return the number of bytes sent to the clients and the other servers
+     */
+    long getBytesSent();
+
+    String getLogLevel();
+
+    void setLogLevel(String level);
+
+    /**
+     * Forget the recorded durations
+     */
+    void reset();
+}
@@ -0,0 +1,215 @@
+package fr.ubs.scribbleOnline;
+
+import java.awt.Color;
+import java.rmi.RemoteException;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import fr.ubs.scribble.Figure;
+import fr.ubs.scribble.ShapeRegistry;
+
+/**
+ * A client of the {@link LoadGenerator}, without user interface: it draws, moves and recolors its
+ * own figures, and receives the changes of the board like a real client. The edits of all the
+ * simulated clients are recorded with their sending time, so that the time each change takes to
+ * reach every client can be measured.
+ * <p>
+ * An update merged with a newer one before it is broadcast, or dropped with a batch, never reaches
+ * some clients. When a client receives a version of a figure, the versions before it that it has
+ * not received are superseded: their reception is recorded at this time, as the client then has
+ * a newer state of the figure. The edits never received are left in the shared map.
+ */
+class SimulatedClient implements Callback, Runnable {
+
+    /**
+     * the size of the area where the figures are drawn
+     */
+    static final int AREA = 2000;
+
+    /**
+     * An edit being broadcast: its sending time, and the number of clients that have not received it yet
+     */
+    static class Sent {
+        final long nanos = System.nanoTime();
+        final AtomicInteger left;
+
+        Sent(int receivers) {
+            this.left = new AtomicInteger(receivers);
+        }
+    }
+
+    private final int writer;
+    private final FiguresBox box;
+    private final int maxFigures;
+    private final Map<Long, Sent> sent;
+    private final int receivers;
+    private final LatencyHistogram edits;
+    private final LatencyHistogram broadcasts;
+    private final AtomicLong received;
+    private final AtomicLong superseded;
+
+    /**
+     * the counter of the last version received, by figure id
+     */
+    private final Map<Integer, Long> seen = new ConcurrentHashMap<>();
+    private final List<Figure> figures = new ArrayList<>();
+    private final Random random;
+    private int nextId;
+    private int lastId;
+
+    /**
+     * @param writer     the writer id of the versions of the figures, unique among the simulated clients
+     * @param box        the board
+     * @param maxFigures the number of figures drawn before the client only moves and recolors them
+     * @param sent       the edits being broadcast, shared by the simulated clients
+     * @param receivers  the number of clients receiving each edit
+     * @param edits      the duration of the edit calls
+     * @param broadcasts the time from sending an edit to its reception by each client
+     * @param received   the number of changes received by all the clients
+     * @param superseded the number of edits not received by a client that received a newer version
+     */
+    SimulatedClient(int writer, FiguresBox box, int maxFigures, Map<Long, Sent> sent, int receivers,
+            LatencyHistogram edits, LatencyHistogram broadcasts, AtomicLong received, AtomicLong superseded) {
+        this.writer = writer;
+        this.box = box;
+        this.maxFigures = maxFigures;
+        this.sent = sent;
+        this.receivers = receivers;
+        this.edits = edits;
+        this.broadcasts = broadcasts;
+        this.received = received;
+        this.superseded = superseded;
+        this.random = new Random(writer);
+    }
+
+    /**
+     * Export the callback and register it to the board
+     */
+    void connect() throws RemoteException {
+        UnicastRemoteObject.exportObject(this, 0);
+        this.box.registerCallback((Callback) UnicastRemoteObject.toStub(this));
+    }
+
+    void disconnect() {
+        try {
+            this.box.unregisterCallback((Callback) UnicastRemoteObject.toStub(this));
+            UnicastRemoteObject.unexportObject(this, true);
+        } catch (RemoteException e) {
+            // the server is stopping
+        }
+    }
+
+    /**
+     * Make one edit: draw a figure, or move or recolor one of the figures drawn before
+     */
+    @Override
+    public void run() {
+        try {
+            int action = this.random.nextInt(10);
+            long start = System.nanoTime();
+            if (this.figures.size() < this.maxFigures && (action < 2 || this.figures.isEmpty())) {
+                Figure figure = new Figure(newId(), ShapeRegistry.getShape(this.random.nextInt(4)),
+                        new Color(this.random.nextInt()), this.random.nextInt(AREA), this.random.nextInt(AREA),
+                        10 + this.random.nextInt(100), 10 + this.random.nextInt(100));
+                figure.nextVersion(this.writer);
+                this.sent.put(key(figure), new Sent(this.receivers));
+                if (this.box.addFigure(figure.copy())) {
+                    this.figures.add(figure);
+                } else { // not broadcast
+                    this.sent.remove(key(figure));
+                }
+            } else {
+                Figure figure = this.figures.get(this.random.nextInt(this.figures.size()));
+                if (action < 8) {
+                    figure.setX(this.random.nextInt(AREA));
+                    figure.setY(this.random.nextInt(AREA));
+                } else {
+                    figure.setColor(new Color(this.random.nextInt()));
+                }
+                figure.nextVersion(this.writer);
+                this.sent.put(key(figure), new Sent(this.receivers));
+                if (!this.box.updateFigure(figure.copy())) {
+                    this.sent.remove(key(figure));
+                }
+            }
+            this.edits.record(System.nanoTime() - start);
+        } catch (RemoteException e) {
+            System.err.println("Simulated client " + this.writer + ": " + e.getMessage());
+        }
+    }
+
+    private int newId() throws RemoteException {
+        if (this.nextId == this.lastId) {
+            this.nextId = this.box.leaseIds(IdLease.BLOCK_SIZE);
+            this.lastId = this.nextId + IdLease.BLOCK_SIZE;
+        }
+        return this.nextId++;
+    }
+
+    /**
+     * The key of an edit: the figure id and the counter of its version. A figure is only edited by
+     * the client that drew it.
+     */
+    private static long key(Figure figure) {
+        return key(figure.getId(), figure.getVersion() >>> 32);
+    }
+
+    private static long key(int id, long counter) {
+        return (long) id << 32 | counter;
+    }
+
+    @Override
+    public void editAll(DeltaBatch batch) {
+        long now = System.nanoTime();
+        for (Delta delta : batch.getDeltas()) {
+            if (delta.getKind() == Delta.Kind.ADD || delta.getKind() == Delta.Kind.UPDATE) {
+                int id = delta.getId();
+                long counter = delta.getFigure().getVersion() >>> 32;
+                Long last = this.seen.get(id);
+                if (last == null || counter > last) {
+                    this.seen.put(id, counter);
+                    // the versions of a figure are counted by the single client that edits it
+                    for (long older = last == null ? 1 : last + 1; older < counter; older++) {
+                        if (receive(key(id, older), now)) {
+                            this.superseded.incrementAndGet();
+                        }
+                    }
+                    receive(key(id, counter), now);
+                }
+                this.received.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Record the reception of an edit by this client
+     *
+     * @return false if the edit is not being broadcast
+     */
+    private boolean receive(long key, long now) {
+        Sent edit = this.sent.get(key);
+        if (edit == null) {
+            return false;
+        }
+        this.broadcasts.record(now - edit.nanos);
+        if (edit.left.decrementAndGet() == 0) {
+            this.sent.remove(key);
+        }
+        return true;
+    }
+
+    @Override
+    public void boardMoved() {
+        System.err.println("Simulated client " + this.writer + ": the board moved to another server");
+    }
+
+    @Override
+    public void ping() {
+    }
+}
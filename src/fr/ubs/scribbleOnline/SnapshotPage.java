@@ -0,0 +1,79 @@
+package fr.ubs.scribbleOnline;
+
+import java.io.Serializable;
+import java.util.List;
+
+import fr.ubs.scribble.Figure;
+
+/**
+ * A page of the figures of a board, as they were at a given revision. The page may hold fewer
+ * figures than it covers, when the receiver could not load the shape of some of them: the next
+ * page starts after the figures covered, not after the figures held.
+ */
+public class SnapshotPage implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final long revision;
+    private final int offset;
+    private final int total;
+    private final List<Figure> figures;
+    private final int nextOffset;
+
+    public SnapshotPage(long revision, int offset, int total, List<Figure> figures) {
+        this(revision, offset, total, figures, offset + figures.size());
+    }
+
+    /**
+     * @param nextOffset the offset of the next page, after the figures covered by this one
+     */
+    public SnapshotPage(long revision, int offset, int total, List<Figure> figures, int nextOffset) {
+        this.revision = revision;
+        this.offset = offset;
+        this.total = total;
+        this.figures = figures;
+        this.nextOffset = nextOffset;
+    }
+
+    /**
+     * @return the revision of the board the snapshot was taken at
+     */
+    public long getRevision() {
+        return revision;
+    }
+
+    /**
+     * @return the position of the first figure of this page in the snapshot
+     */
+    public int getOffset() {
+        return offset;
+    }
+
+    /**
+     * @return the number of figures in the whole snapshot
+     */
+    public int getTotal() {
+        return total;
+    }
+
+    /**
+     * @return the figures of this page, in drawing order
+     */
+    public List<Figure> getFigures() {
+        return figures;
+    }
+
+    /**
+     * @return the offset of the next page
+     */
+    public int getNextOffset() {
+        return nextOffset;
+    }
+
+    /**
+     * @return true if other pages follow this one
+     */
+    public boolean hasMore() {
+        return getNextOffset() < total;
+    }
+}